@@ -0,0 +1,102 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * <p>Allows a blocking resolve to be abandoned from another thread. While it blocks, the resolve
+ * registers what it is waiting on, such as its socket, and {@link #cancel()} closes that so the
+ * blocked call returns at once with an exception instead of running to its timeout.</p>
+ *
+ * <p>A cancellation cannot be undone. Thread-safe.</p>
+ */
+class Cancellation {
+
+    private boolean mCancelled;
+    private Closeable mBlocker;
+
+    /**
+     * Registers what a call is about to block on, replacing any previous registration.
+     * @throws InterruptedIOException if already cancelled, in which case {@code blocker} is
+     *                                closed immediately
+     */
+    void setBlocker(Closeable blocker) throws InterruptedIOException {
+        synchronized (this) {
+            if (!mCancelled) {
+                mBlocker = blocker;
+                return;
+            }
+        }
+        closeQuietly(blocker);
+        throw new InterruptedIOException("cancelled");
+    }
+
+    /**
+     * Removes the registration made by {@link #setBlocker(Closeable)}, once the call no longer
+     * blocks on it.
+     */
+    synchronized void clearBlocker() {
+        mBlocker = null;
+    }
+
+    /**
+     * Cancels, closing whatever is currently registered. Does nothing if already cancelled.
+     */
+    void cancel() {
+        Closeable blocker;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            blocker = mBlocker;
+            mBlocker = null;
+        }
+        closeQuietly(blocker);
+    }
+
+    synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @throws InterruptedIOException if {@link #cancel()} has been called
+     */
+    void throwIfCancelled() throws InterruptedIOException {
+        if (isCancelled()) {
+            throw new InterruptedIOException("cancelled");
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing more can be done, and the blocked call fails either way
+            }
+        }
+    }
+}
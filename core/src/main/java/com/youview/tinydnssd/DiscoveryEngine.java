@@ -0,0 +1,985 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2015 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>The platform independent part of {@code DiscoverResolver}: debounces the services reported
+ * by a browser, resolves them one at a time with retries, applies passively received records,
+ * keeps the persistent cache and coalesces change notifications. It uses only a {@link Scheduler}
+ * for timers and listener calls and an {@link Executor} for blocking work, so it runs unchanged
+ * on a desktop JVM.</p>
+ *
+ * <p>Subclasses supply the listener and filter, and may replace the clock, the logging and the
+ * resolve itself. The browser, e.g. Android's {@code NsdManager}, reports services through
+ * {@link #onServiceFound(String)} and {@link #onServiceLost(String)}. Calls to the engine and its
+ * hooks lock the engine itself, which adapters may also lock to keep their own state in step with
+ * {@link #isStarted()}.</p>
+ */
+abstract class DiscoveryEngine {
+
+    private static final int RESOLVE_ATTEMPTS = 3;
+    // random delay before retrying a resolve, as for mDNS responses (RFC 6762 section 6)
+    private static final int RETRY_JITTER_MIN = 20, RETRY_JITTER_MAX = 120;
+    // a goodbye record is treated as having a TTL of 1 second (RFC 6762 section 10.1)
+    private static final int GOODBYE_GRACE_MILLIS = 1000;
+    // how long after another host's query its answers are expected, including the delay of up to
+    // 500ms for shared records (RFC 6762 section 6)
+    private static final int DUPLICATE_QUESTION_WINDOW = 1000;
+    private static final String SUBTYPE_SEPARATOR = "._sub.";
+    // wait before resolving a service again after it failed, doubling with each further failure
+    private static final int RETRY_BACKOFF_INITIAL_MILLIS = 5000;
+    private static final int RETRY_BACKOFF_MAX_MILLIS = 5 * 60 * 1000;
+    // time spent in the resolve queue that is worth one level of priority
+    private static final int PRIORITY_AGING_MILLIS = 10000;
+    // cache file loads and saves run one at a time, in order, so a save on stop() and the load
+    // on the next start() never interleave; its thread exits when idle
+    private static final Executor sCacheFileExecutor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static final int PRIORITY_LOW = -1;
+    static final int PRIORITY_NORMAL = 0;
+    static final int PRIORITY_HIGH = 1;
+
+    private final MapDebouncer<String, Object> mDebouncer;
+
+    // written only with the engine locked, read without it
+    private final ServiceRegistry mServices = new ServiceRegistry();
+    // services loaded from the cache file that have not been resolved again yet
+    private final Set<String> mUnconfirmed = new HashSet<>();
+    // services the filter did not accept, which are not resolved again until they are lost
+    private final Set<String> mRejected = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private File mCacheFile;
+    private final Scheduler mScheduler;
+    private final Executor mExecutor;
+    private volatile boolean mStarted;
+    private final ResolveQueue mResolveQueue = new ResolveQueue(PRIORITY_AGING_MILLIS);
+    private final Map<String, Integer> mPriorities = new HashMap<>();
+    // the following are guarded by mResolveQueue: the running resolve task, which may be started
+    // from a background thread, services that failed to resolve, the services currently found,
+    // and scheduled retries of failed services
+    private ResolveTask mResolveTask;
+    private final NegativeCache mNegativeCache = new NegativeCache(RETRY_BACKOFF_INITIAL_MILLIS, RETRY_BACKOFF_MAX_MILLIS);
+    private final Set<String> mFound = new HashSet<>();
+    private final Map<String, Runnable> mRetries = new HashMap<>();
+    // the service being resolved and how to abandon its resolve, also guarded by mResolveQueue
+    private String mResolving;
+    private Cancellation mResolvingCancellation;
+    private final RttEstimator mRttEstimator = new RttEstimator();
+    private final Random mRandom = new Random();
+    // records seen by the passive listener, consulted before sending a resolve query
+    private final RecordCache mRecordCache = new RecordCache();
+    private boolean mPassiveListening;
+    private PassiveListener mPassiveListener;
+    // set when the next query should ask for a unicast response, see query()
+    private final AtomicBoolean mUnicastNext = new AtomicBoolean(true);
+
+    /**
+     * @param debounceMillis time to delay the removal of services that may quickly disappear then
+     *                       reappear
+     * @param scheduler delivers calls to {@link #onServicesChanged(Map)} and runs timers
+     * @param executor runs resolves and other blocking work, one resolve at a time
+     */
+    DiscoveryEngine(int debounceMillis, Scheduler scheduler, Executor executor) {
+        if (scheduler == null) throw new NullPointerException("scheduler was null");
+        if  (executor == null) throw new NullPointerException("executor was null");
+
+        mScheduler = scheduler;
+        mExecutor = executor;
+        mDebouncer = new MapDebouncer<>(debounceMillis, new MapDebouncer.Listener<String, Object>() {
+            @Override
+            public void put(String name, Object o) {
+                if (o != null) {
+                    if (mRejected.contains(name)) {
+                        return;
+                    }
+                    debug("add: " + name);
+                    boolean known = isKnown(name);
+                    synchronized (mResolveQueue) {
+                        mFound.add(name);
+                        long retryTime = mNegativeCache.getRetryTime(name);
+                        if (retryTime > mScheduler.uptimeMillis()) {
+                            // failed recently, so wait for its retry rather than resolve again now
+                            scheduleRetry(name, retryTime);
+                        } else {
+                            mResolveQueue.put(name, getPriority(name, known), mScheduler.uptimeMillis());
+                        }
+                    }
+                    startResolveTaskIfNeeded();
+                } else {
+                    debug("remove: " + name);
+                    synchronized (DiscoveryEngine.this) {
+                        synchronized (mResolveQueue) {
+                            mResolveQueue.remove(name);
+                            mFound.remove(name);
+                            cancelRetry(name);
+                            cancelResolve(name);
+                        }
+                        if (mStarted) {
+                            mRejected.remove(name);
+                            mUnconfirmed.remove(name);
+                            if (mServices.remove(name) != null) {
+                                dispatchServicesChanged();
+                            }
+                        }
+                    }
+                }
+            }
+        }, mScheduler, this);
+    }
+
+    /**
+     * Called on the scheduler with the services now visible, keyed by service name. The map is an
+     * unmodifiable snapshot, the same object returned by {@link #getServices()}.
+     */
+    abstract void onServicesChanged(Map<String, MDNSDiscover.Result> services);
+
+    /**
+     * Called on a background thread once a service's TXT record has been received, without the
+     * engine locked.
+     * @param txt the service's TXT record, never {@code null}
+     * @return {@code true} to keep the service
+     */
+    abstract boolean accept(String serviceName, MDNSDiscover.TXT txt);
+
+    /**
+     * @return {@code true} if {@link #accept(String, MDNSDiscover.TXT)} may reject services, in
+     *         which case a service is not reported until its TXT record has been received
+     */
+    abstract boolean hasFilter();
+
+    /**
+     * Sends a unicast resolve query, by default with {@link MDNSDiscover}.
+     */
+    MDNSDiscover.Result resolve(String serviceName, int timeout, Cancellation cancellation) throws IOException {
+        return MDNSDiscover.resolve(serviceName, timeout, cancellation);
+    }
+
+    /**
+     * @return a monotonic time in milliseconds that keeps counting while the device sleeps, the
+     *         time base for record TTLs and round trip times
+     */
+    long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /** Logs a step of discovery or resolving, by default nowhere. */
+    void debug(String message) {
+    }
+
+    /** Logs a failure that discovery continues after, by default nowhere. */
+    void warn(String message, Throwable e) {
+    }
+
+    /**
+     * Enables a persistent cache of resolved services, see {@code DiscoverResolver}.
+     * @param file where to store the cache, or {@code null} to disable caching
+     */
+    synchronized void setCacheFile(File file) {
+        mCacheFile = file;
+    }
+
+    /**
+     * Enables listening on the mDNS port while started, see {@code DiscoverResolver}. Takes effect
+     * at the next {@link #start()}.
+     */
+    synchronized void setPassiveListening(boolean enabled) {
+        mPassiveListening = enabled;
+    }
+
+    synchronized boolean isPassiveListening() {
+        return mPassiveListening;
+    }
+
+    boolean isStarted() {
+        return mStarted;
+    }
+
+    // call with engine locked
+    private void reject(String serviceName) {
+        debug("filtered out: " + serviceName);
+        mRejected.add(serviceName);
+        mUnconfirmed.remove(serviceName);
+        if (mServices.remove(serviceName) != null) {
+            dispatchServicesChanged();
+        }
+    }
+
+    synchronized void start() {
+        if (mStarted) {
+            throw new IllegalStateException();
+        }
+        mStarted = true;
+        if (mPassiveListening) {
+            startPassiveListening();
+        }
+        if (mCacheFile != null) {
+            sCacheFileExecutor.execute(new LoadCacheRunnable(mCacheFile));
+        }
+    }
+
+    synchronized void stop() {
+        if (!mStarted) {
+            throw new IllegalStateException();
+        }
+        synchronized (mResolveQueue) {
+            mResolveQueue.clear();
+            mFound.clear();
+            for (Runnable retry : mRetries.values()) {
+                mScheduler.removeCallbacks(retry);
+            }
+            mRetries.clear();
+            mNegativeCache.clear();
+            // a resolve in progress is abandoned rather than left to time out
+            if (mResolvingCancellation != null) {
+                mResolvingCancellation.cancel();
+            }
+            if (mResolveTask != null) {
+                mResolveTask.cancel();
+            }
+        }
+        mDebouncer.clear();
+        if (mCacheFile != null) {
+            sCacheFileExecutor.execute(new SaveCacheRunnable(mCacheFile,
+                    mServices.snapshot()));
+        }
+        stopPassiveListening();
+        mServices.clear();
+        mUnconfirmed.clear();
+        mRejected.clear();
+        mServicesChanged.set(false);
+        mStarted = false;
+    }
+
+    /**
+     * Reports a service found by the browser, which is resolved unless it is already known.
+     * @param serviceName full name, e.g. {@code "device._example._tcp.local"}
+     */
+    synchronized void onServiceFound(String serviceName) {
+        if (mStarted) {
+            mDebouncer.put(serviceName, DUMMY);
+        }
+    }
+
+    /**
+     * Reports a service lost by the browser, which is removed after the debounce period.
+     */
+    synchronized void onServiceLost(String serviceName) {
+        if (mStarted) {
+            mDebouncer.put(serviceName, null);
+        }
+    }
+
+    private void startPassiveListening() {
+        // binding the socket is done off the calling thread, which is usually the main thread
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PassiveListener passiveListener;
+                try {
+                    passiveListener = new PassiveListener(new PassiveListener.Listener() {
+                        @Override
+                        public void onResponse(List<MDNSDiscover.Record> records) {
+                            mRecordCache.put(records, elapsedRealtime());
+                            onRecordsReceived(records);
+                        }
+
+                        @Override
+                        public void onQuestions(List<String> names) {
+                            long now = elapsedRealtime();
+                            for (String name : names) {
+                                mRecordCache.putQuestion(name, now);
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    warn("passive listening unavailable", e);
+                    return;
+                }
+                synchronized (DiscoveryEngine.this) {
+                    if (mStarted && mPassiveListening && mPassiveListener == null) {
+                        mPassiveListener = passiveListener;
+                        mUnicastNext.set(true);
+                        return;
+                    }
+                }
+                passiveListener.close();
+            }
+        });
+    }
+
+    private void stopPassiveListening() {
+        if (mPassiveListener != null) {
+            mPassiveListener.close();
+            mPassiveListener = null;
+        }
+        mRecordCache.clear();
+    }
+
+    private class LoadCacheRunnable implements Runnable {
+        private final File mFile;
+
+        LoadCacheRunnable(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public void run() {
+            Map<String, MDNSDiscover.Result> cached;
+            long now = System.currentTimeMillis();
+            try {
+                cached = PersistentCache.load(mFile, now);
+            } catch (IOException e) {
+                warn("could not load cache file " + mFile, e);
+                return;
+            }
+            debug("loaded " + cached.size() + " services from cache");
+            // the filter is called before taking the lock. Services whose TXT record has expired
+            // cannot be filtered, so are only reported once resolved again.
+            boolean filter = hasFilter();
+            Map<String, MDNSDiscover.Result> accepted = new HashMap<>();
+            Iterator<Map.Entry<String, MDNSDiscover.Result>> it = cached.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, MDNSDiscover.Result> entry = it.next();
+                String name = entry.getKey();
+                MDNSDiscover.TXT txt = entry.getValue().txt;
+                if (mRejected.contains(name) || txt != null && !accept(name, txt)) {
+                    it.remove();
+                } else if (txt != null || !filter) {
+                    accepted.put(name, entry.getValue());
+                }
+            }
+            synchronized (DiscoveryEngine.this) {
+                if (!mStarted || cached.isEmpty()) {
+                    return;
+                }
+                for (Map.Entry<String, MDNSDiscover.Result> entry : accepted.entrySet()) {
+                    String name = entry.getKey();
+                    if (!mRejected.contains(name) && mServices.get(name) == null) {
+                        mServices.put(name, entry.getValue());
+                        mUnconfirmed.add(name);
+                    }
+                }
+                if (!accepted.isEmpty()) {
+                    dispatchServicesChanged();
+                }
+            }
+            // revalidate cached services behind anything discovered in the meantime
+            synchronized (mResolveQueue) {
+                for (String name : cached.keySet()) {
+                    mResolveQueue.put(name, getPriority(name, true), mScheduler.uptimeMillis());
+                }
+            }
+            startResolveTaskIfNeeded();
+        }
+    }
+
+    private class SaveCacheRunnable implements Runnable {
+        private final File mFile;
+        private final Map<String, MDNSDiscover.Result> mServices;
+
+        SaveCacheRunnable(File file, Map<String, MDNSDiscover.Result> services) {
+            mFile = file;
+            mServices = services;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PersistentCache.save(mFile, mServices);
+            } catch (IOException e) {
+                warn("could not save cache file " + mFile, e);
+            }
+        }
+    }
+
+    /**
+     * A non-null value that indicates membership in the MapDebouncer, null indicates non-membership
+     */
+    private Object DUMMY = new Object();
+
+    private final AtomicBoolean mServicesChanged = new AtomicBoolean();
+    private int mMinDispatchIntervalMillis, mMaxDispatchLatencyMillis;
+    // the following are in mScheduler's time base
+    private long mFirstChangeTime, mScheduledDispatchTime;
+    private volatile long mLastDispatchTime = Long.MIN_VALUE / 2;
+
+    /**
+     * @return the services currently visible, as an unmodifiable snapshot
+     */
+    Map<String, MDNSDiscover.Result> getServices() {
+        return mServices.snapshot();
+    }
+
+    /**
+     * @param serviceType a service type as given to the browser, which may name a subtype
+     * @return an unmodifiable map of the services of that type
+     */
+    Map<String, MDNSDiscover.Result> getServices(String serviceType) {
+        String suffix = "." + stripSubtype(normalizeServiceType(serviceType)) + ".local";
+        Map<String, MDNSDiscover.Result> services = new HashMap<>();
+        for (Map.Entry<String, MDNSDiscover.Result> entry : mServices.snapshot().entrySet()) {
+            if (entry.getKey().endsWith(suffix)) {
+                services.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(services);
+    }
+
+    Map<String, MDNSDiscover.Result> getServicesByHost(String host) {
+        return lookup(mServices.getNamesByHost(host));
+    }
+
+    Map<String, MDNSDiscover.Result> getServicesByAddress(String ipaddr) {
+        return lookup(mServices.getNamesByAddress(ipaddr));
+    }
+
+    Map<String, MDNSDiscover.Result> getServicesWithTxt(String key, String value) {
+        return lookup(mServices.getNamesByTxt(key, value));
+    }
+
+    private Map<String, MDNSDiscover.Result> lookup(Set<String> names) {
+        Map<String, MDNSDiscover.Result> services = new HashMap<>();
+        for (String name : names) {
+            MDNSDiscover.Result result = mServices.get(name);
+            if (result != null) {
+                services.put(name, result);
+            }
+        }
+        return Collections.unmodifiableMap(services);
+    }
+
+    /**
+     * @return the service type without any trailing {@code "."} or {@code ".local"}, e.g.
+     *         {@code "_example._tcp"}
+     */
+    static String normalizeServiceType(String serviceType) {
+        if (serviceType.endsWith(".")) {
+            serviceType = serviceType.substring(0, serviceType.length() - 1);
+        }
+        if (serviceType.endsWith(".local")) {
+            serviceType = serviceType.substring(0, serviceType.length() - ".local".length());
+        }
+        return serviceType;
+    }
+
+    /**
+     * @return the base type of a type that may name a subtype, in either form, e.g.
+     *         {@code "_http._tcp."} for {@code "_printer._sub._http._tcp."} or
+     *         {@code "_http._tcp,_printer."}
+     */
+    static String stripSubtype(String serviceType) {
+        int sub = serviceType.indexOf(SUBTYPE_SEPARATOR);
+        if (sub != -1) {
+            serviceType = serviceType.substring(sub + SUBTYPE_SEPARATOR.length());
+        }
+        int comma = serviceType.indexOf(',');
+        if (comma != -1) {
+            serviceType = serviceType.substring(0, comma) + (serviceType.endsWith(".") ? "." : "");
+        }
+        return serviceType;
+    }
+
+    // call with engine locked, after modifying mServices
+    private void dispatchServicesChanged() {
+        if (!mStarted) {
+            throw new IllegalStateException();
+        }
+        // Multiple calls to this method are possible before mServicesChangedRunnable executes.
+        // We don't post the runnable every time this method is called, instead we set a flag and
+        // post only if the flag was previously unset. The runnable clears the flag.
+        // In this way, the main thread can coalesce several updates into a single call to
+        // onServicesChanged().
+        // With a dispatch interval, each further change postpones the runnable by the interval
+        // (but never beyond the maximum latency after the first change), so bursts coalesce too.
+        long now = mScheduler.uptimeMillis();
+        boolean firstChange = mServicesChanged.compareAndSet(false, true);
+        if (firstChange) {
+            mFirstChangeTime = now;
+        }
+        long dispatchTime = Math.min(
+                Math.max(now, mLastDispatchTime) + mMinDispatchIntervalMillis,
+                mFirstChangeTime + mMaxDispatchLatencyMillis);
+        if (firstChange || dispatchTime != mScheduledDispatchTime) {
+            mScheduledDispatchTime = dispatchTime;
+            if (dispatchTime <= now) {
+                mScheduler.post(mServicesChangedRunnable);
+            } else {
+                mScheduler.removeCallbacks(mServicesChangedRunnable);
+                mScheduler.postDelayed(mServicesChangedRunnable, dispatchTime - now);
+            }
+        }
+    }
+
+    /**
+     * Limits how often {@link #onServicesChanged(Map)} is called, see {@code DiscoverResolver}.
+     */
+    synchronized void setDispatchInterval(int minIntervalMillis, int maxLatencyMillis) {
+        if (minIntervalMillis < 0 || maxLatencyMillis < minIntervalMillis) {
+            throw new IllegalArgumentException();
+        }
+        mMinDispatchIntervalMillis = minIntervalMillis;
+        mMaxDispatchLatencyMillis = maxLatencyMillis;
+    }
+
+    private Runnable mServicesChangedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // no lock needed: the snapshot is immutable and the flags are atomic. The dispatch
+            // time is set before the flag is cleared, so a change that finds the flag clear is
+            // always held back from this dispatch, not an earlier one
+            if (mServicesChanged.get() && mStarted) {
+                mLastDispatchTime = mScheduler.uptimeMillis();
+                if (mServicesChanged.getAndSet(false)) {
+                    onServicesChanged(mServices.snapshot());
+                }
+            }
+        }
+    };
+
+    /**
+     * Resolves queued services until the queue is empty. Cancelling interrupts the thread running
+     * the task, and the next task is only started once this one has finished.
+     */
+    private class ResolveTask implements Runnable {
+        // guarded by mResolveQueue
+        private boolean mCancelled;
+        private Thread mThread;
+
+        // call with mResolveQueue locked
+        void cancel() {
+            mCancelled = true;
+            if (mThread != null) {
+                mThread.interrupt();
+            }
+        }
+
+        private boolean isCancelled() {
+            synchronized (mResolveQueue) {
+                return mCancelled;
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (mResolveQueue) {
+                mThread = Thread.currentThread();
+            }
+            try {
+                resolveQueued();
+            } finally {
+                synchronized (mResolveQueue) {
+                    mResolving = null;
+                    mResolvingCancellation = null;
+                    // an interrupt from cancel() must not reach the executor's next task
+                    mThread = null;
+                    Thread.interrupted();
+                }
+                onFinished();
+            }
+        }
+
+        private void resolveQueued() {
+            while (!isCancelled()) {
+                String serviceName;
+                Cancellation cancellation = new Cancellation();
+                synchronized (mResolveQueue) {
+                    serviceName = mResolveQueue.poll();
+                    mResolving = serviceName;
+                    mResolvingCancellation = cancellation;
+                }
+                if (serviceName == null) {
+                    break;
+                }
+                try {
+                    MDNSDiscover.Result result = getFromRecordCache(serviceName, cancellation);
+                    if (result != null) {
+                        debug("resolved from passively received records: " + serviceName);
+                    } else {
+                        result = resolveWithRetries(serviceName, cancellation);
+                    }
+                    if (result.srv != null && result.srv.isGoodbye()) {
+                        onGoodbye(serviceName);
+                        continue;
+                    }
+                    if (result.txt == null && hasFilter()) {
+                        // the TXT record did not arrive in time, so the filter cannot decide
+                        // yet; the service is resolved again later, as after a failure
+                        debug("resolved without TXT record: " + serviceName);
+                        onResolveFailed(serviceName);
+                        continue;
+                    }
+                    synchronized (mResolveQueue) {
+                        mNegativeCache.remove(serviceName);
+                    }
+                    boolean accepted = result.txt == null || accept(serviceName, result.txt);
+                    synchronized (DiscoveryEngine.this) {
+                        // cancelled when lost or stopped, under this lock, so never reported after
+                        if (cancellation.isCancelled()) {
+                            continue;
+                        }
+                        if (mStarted && !accepted) {
+                            reject(serviceName);
+                        } else if (mStarted) {
+                            mServices.put(serviceName, result);
+                            mUnconfirmed.remove(serviceName);
+                            dispatchServicesChanged();
+                        }
+                    }
+                } catch(IOException e) {
+                    if (cancellation.isCancelled()) {
+                        // says nothing about whether the service resolves
+                        debug("resolve cancelled: " + serviceName);
+                        continue;
+                    }
+                    warn("could not resolve " + serviceName, e);
+                    onResolveFailed(serviceName);
+                    synchronized (DiscoveryEngine.this) {
+                        // a service known only from the cache has gone away
+                        if (mStarted && mUnconfirmed.remove(serviceName)) {
+                            mServices.remove(serviceName);
+                            dispatchServicesChanged();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        private void onResolveFailed(String serviceName) {
+            synchronized (mResolveQueue) {
+                long retryTime = mNegativeCache.onFailure(serviceName, mScheduler.uptimeMillis());
+                if (mFound.contains(serviceName)) {
+                    scheduleRetry(serviceName, retryTime);
+                }
+            }
+        }
+
+        /**
+         * Looks for the service's records among those received passively. If another host has just
+         * asked about the service, its answers are expected shortly, so waits for them rather than
+         * sending the same question (RFC 6762 section 7.3).
+         */
+        private MDNSDiscover.Result getFromRecordCache(String serviceName, Cancellation cancellation) throws IOException, InterruptedException {
+            long now = elapsedRealtime();
+            MDNSDiscover.Result result = mRecordCache.get(serviceName, now);
+            long questionTime = mRecordCache.getQuestionTime(serviceName, now, DUPLICATE_QUESTION_WINDOW);
+            if (result == null && questionTime != -1) {
+                debug("waiting for answers to another host's query: " + serviceName);
+                result = awaitRecordCache(serviceName, questionTime + DUPLICATE_QUESTION_WINDOW, cancellation);
+            }
+            return result;
+        }
+
+        /**
+         * Resolves with a timeout derived from the service's previous response times. Each attempt
+         * uses a new socket, so a reply always belongs to the latest query and is a valid RTT
+         * sample. Timed out attempts double the timeout and are retried after a random delay.
+         */
+        private MDNSDiscover.Result resolveWithRetries(String serviceName, Cancellation cancellation) throws IOException, InterruptedException {
+            for (int attempt = 1; ; attempt++) {
+                int timeout = mRttEstimator.getTimeout(serviceName);
+                long startTime = elapsedRealtime();
+                try {
+                    MDNSDiscover.Result result = query(serviceName, timeout, cancellation);
+                    mRttEstimator.addSample(serviceName, (int) (elapsedRealtime() - startTime));
+                    return result;
+                } catch (SocketTimeoutException e) {
+                    mRttEstimator.onTimeout(serviceName);
+                    if (attempt == RESOLVE_ATTEMPTS || isCancelled() || cancellation.isCancelled()) {
+                        throw e;
+                    }
+                    debug("resolve timed out after " + timeout + "ms, retrying: " + serviceName);
+                }
+                Thread.sleep(RETRY_JITTER_MIN + mRandom.nextInt(RETRY_JITTER_MAX - RETRY_JITTER_MIN + 1));
+            }
+        }
+
+        /**
+         * Sends one query for a service's records. Without passive listening, this is always a
+         * unicast resolve. With it, only the first query after the listener starts asks for a
+         * unicast response (RFC 6762 section 5.4); later queries are sent from the mDNS port and
+         * answered by multicast, which responders can rate limit and other hosts can cache, and
+         * the answers are collected by the passive listener.
+         */
+        private MDNSDiscover.Result query(String serviceName, int timeout, Cancellation cancellation) throws IOException, InterruptedException {
+            PassiveListener passiveListener;
+            synchronized (DiscoveryEngine.this) {
+                passiveListener = mPassiveListener;
+            }
+            if (passiveListener == null || mUnicastNext.getAndSet(false)) {
+                return resolve(serviceName, timeout, cancellation);
+            }
+            passiveListener.send(MDNSDiscover.resolvePacket(serviceName, false));
+            MDNSDiscover.Result result = awaitRecordCache(serviceName, elapsedRealtime() + timeout, cancellation);
+            if (result == null) {
+                throw new SocketTimeoutException("no multicast answer for " + serviceName);
+            }
+            return result;
+        }
+
+        /**
+         * Waits for the passive listener to receive a service's records.
+         * @param endTime when to give up, in {@link #elapsedRealtime()} time
+         * @return the service's records, or {@code null} if they did not arrive by {@code endTime}
+         * @throws java.io.InterruptedIOException if the resolve is cancelled while waiting
+         */
+        private MDNSDiscover.Result awaitRecordCache(String serviceName, long endTime, Cancellation cancellation) throws IOException, InterruptedException {
+            // cancelling wakes the wait for records
+            cancellation.setBlocker(new Closeable() {
+                @Override
+                public void close() {
+                    mRecordCache.wake();
+                }
+            });
+            try {
+                while (true) {
+                    cancellation.throwIfCancelled();
+                    long now = elapsedRealtime();
+                    MDNSDiscover.Result result = mRecordCache.get(serviceName, now);
+                    if (result != null || now >= endTime) {
+                        return result;
+                    }
+                    mRecordCache.awaitPut(endTime - now);
+                }
+            } finally {
+                cancellation.clearBlocker();
+            }
+        }
+
+        private void onFinished() {
+            // services found after a stop() and start() wait for this task to finish
+            synchronized (mResolveQueue) {
+                if (mResolveTask == this) {
+                    mResolveTask = null;
+                }
+            }
+            startResolveTaskIfNeeded();
+        }
+    }
+
+    /**
+     * Sets the priority with which a service is resolved, see {@code DiscoverResolver}.
+     */
+    void setPriority(String serviceName, int priority) {
+        if (serviceName == null) throw new NullPointerException("serviceName was null");
+        boolean known = isKnown(serviceName);
+        synchronized (mResolveQueue) {
+            if (priority == PRIORITY_NORMAL) {
+                mPriorities.remove(serviceName);
+            } else {
+                mPriorities.put(serviceName, priority);
+            }
+            mResolveQueue.updatePriority(serviceName, getPriority(serviceName, known), mScheduler.uptimeMillis());
+        }
+    }
+
+    /**
+     * @return how to abandon the resolve in progress, for {@link #resolve(String, int, Cancellation)}
+     *         overrides that cannot take it as a parameter, or {@code null} if there is none
+     */
+    Cancellation getResolvingCancellation() {
+        synchronized (mResolveQueue) {
+            return mResolvingCancellation;
+        }
+    }
+
+    /**
+     * Removes a service that has announced it is going away, bypassing the debounce period. The
+     * service is removed after a one second grace period, unless it is found again in that time.
+     */
+    void onGoodbye(String serviceName) {
+        debug("goodbye: " + serviceName);
+        synchronized (this) {
+            if (mStarted) {
+                // a service known only from the cache file was never put in the debouncer
+                if (mUnconfirmed.remove(serviceName)) {
+                    mServices.remove(serviceName);
+                    dispatchServicesChanged();
+                }
+                mDebouncer.remove(serviceName, GOODBYE_GRACE_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Applies records observed on the network, e.g. an unsolicited announcement, to the services
+     * already resolved, so that a device changing its address or port is updated by a single
+     * packet rather than a new resolve. Records with the cache-flush bit replace the existing
+     * record of that type; goodbye records remove the service.
+     * @param records records decoded from one packet
+     */
+    void onRecordsReceived(List<MDNSDiscover.Record> records) {
+        // one at a time and in order, so e.g. an SRV record moving a service to another host is
+        // applied before that host's A record
+        for (MDNSDiscover.Record record : records) {
+            MDNSDiscover.Result update = new MDNSDiscover.Result();
+            if (record instanceof MDNSDiscover.A) {
+                update.a = (MDNSDiscover.A) record;
+            } else if (record instanceof MDNSDiscover.SRV) {
+                update.srv = (MDNSDiscover.SRV) record;
+            } else if (record instanceof MDNSDiscover.TXT) {
+                update.txt = (MDNSDiscover.TXT) record;
+            } else if (record instanceof MDNSDiscover.PTR) {
+                update.ptrs = Collections.singletonList((MDNSDiscover.PTR) record);
+            }
+            onRecordReceived(update);
+        }
+    }
+
+    private void onRecordReceived(MDNSDiscover.Result update) {
+        if (update.srv != null && update.srv.isGoodbye()) {
+            onGoodbye(update.srv.fqdn);
+        }
+        if (update.ptrs != null) {
+            for (MDNSDiscover.PTR ptr : update.ptrs) {
+                if (ptr.isGoodbye()) {
+                    onGoodbye(ptr.ptrname);
+                }
+            }
+        }
+        // a TXT record of a known service is filtered before taking the lock, null if not
+        Boolean txtAccepted = null;
+        if (update.txt != null && !update.txt.isGoodbye() && isKnown(update.txt.fqdn)) {
+            txtAccepted = accept(update.txt.fqdn, update.txt);
+        }
+        synchronized (this) {
+            if (!mStarted) {
+                return;
+            }
+            boolean changed = false;
+            // SRV and TXT records are keyed by the service name, and an A record may belong to
+            // any number of services on the same host
+            Set<String> names = new HashSet<>();
+            String name = update.srv != null ? update.srv.fqdn : update.txt != null ? update.txt.fqdn : null;
+            if (name != null) {
+                names.add(name);
+            }
+            if (update.a != null && update.a.fqdn != null) {
+                names.addAll(mServices.getNamesByHost(update.a.fqdn));
+            }
+            for (String serviceName : names) {
+                MDNSDiscover.Result existing = mServices.get(serviceName);
+                MDNSDiscover.Result merged = existing != null ? MDNSDiscover.applyUpdate(existing, update, serviceName) : null;
+                // only the TXT record's own service can have its TXT record replaced. If it was
+                // resolved after the filter was skipped, the resolve has filtered it instead.
+                if (merged != null && merged.txt != existing.txt && txtAccepted == null) {
+                    continue;
+                }
+                if (merged != null && merged.txt != existing.txt && !txtAccepted) {
+                    reject(serviceName);
+                } else if (merged != null) {
+                    mServices.put(serviceName, merged);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                dispatchServicesChanged();
+            }
+        }
+    }
+
+    private boolean isKnown(String serviceName) {
+        return mServices.get(serviceName) != null;
+    }
+
+    // call with mResolveQueue locked
+    private void scheduleRetry(final String serviceName, long retryTime) {
+        if (mRetries.containsKey(serviceName)) {
+            return;
+        }
+        Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                boolean known = isKnown(serviceName);
+                synchronized (mResolveQueue) {
+                    if (mRetries.get(serviceName) != this) {
+                        return;
+                    }
+                    mRetries.remove(serviceName);
+                    if (!mStarted || !mFound.contains(serviceName)) {
+                        return;
+                    }
+                    debug("retrying resolve: " + serviceName);
+                    mResolveQueue.put(serviceName, getPriority(serviceName, known), mScheduler.uptimeMillis());
+                }
+                startResolveTaskIfNeeded();
+            }
+        };
+        mRetries.put(serviceName, retry);
+        mScheduler.postDelayed(retry, Math.max(0, retryTime - mScheduler.uptimeMillis()));
+    }
+
+    // call with mResolveQueue locked
+    private void cancelRetry(String serviceName) {
+        Runnable retry = mRetries.remove(serviceName);
+        if (retry != null) {
+            mScheduler.removeCallbacks(retry);
+        }
+    }
+
+    // call with mResolveQueue locked
+    private void cancelResolve(String serviceName) {
+        if (mResolvingCancellation != null && serviceName.equals(mResolving)) {
+            debug("cancelling resolve of lost service: " + serviceName);
+            mResolvingCancellation.cancel();
+        }
+    }
+
+    // call with mResolveQueue locked
+    private int getPriority(String serviceName, boolean known) {
+        Integer priority = mPriorities.get(serviceName);
+        if (priority != null) {
+            return priority;
+        }
+        return known ? PRIORITY_LOW : PRIORITY_NORMAL;
+    }
+
+    // called from the browser's thread, the scheduler's thread, cache loading and finished tasks
+    private void startResolveTaskIfNeeded() {
+        synchronized (mResolveQueue) {
+            if (mResolveTask == null && !mResolveQueue.isEmpty()) {
+                mResolveTask = new ResolveTask();
+                mExecutor.execute(mResolveTask);
+            }
+        }
+    }
+}
@@ -0,0 +1,1746 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2015 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Low-level functionality for handling questions and answers over the Multicast DNS Protocol
+ * (RFC 6762), in conjunction with DNS Service Discovery (DNS-SD, RFC 6763).
+ */
+public class MDNSDiscover {
+
+    private static final short QTYPE_A   = 0x0001;
+    static final short QTYPE_PTR = 0x000c;
+    static final short QTYPE_TXT = 0x0010;
+    static final short QTYPE_SRV = 0x0021;
+
+    static final short QCLASS_INTERNET = 0x0001;
+    static final short CLASS_FLAG_MULTICAST = 0, CLASS_FLAG_UNICAST = (short) 0x8000;
+    // in answers rather than questions, the top bit of the class means cache-flush
+    static final short CLASS_FLAG_CACHE_FLUSH = (short) 0x8000;
+    // QR bit of the DNS header flags, set in responses
+    static final short FLAG_RESPONSE = (short) 0x8000;
+    static final int PORT = 5353;
+
+    static final String MULTICAST_GROUP_ADDRESS = "224.0.0.251";
+
+    /** Meta-query name for enumerating service types, see RFC 6763 section 9. */
+    static final String SERVICE_TYPE_ENUMERATION = "_services._dns-sd._udp.local";
+    // how long each service type browse in enumerate() waits for answers
+    private static final int ENUMERATE_BROWSE_WINDOW = 1000;
+    // delay before resolveAll() tries again to send a query that did not fit in the send buffer
+    private static final int RESOLVE_ALL_SEND_RETRY = 10;
+
+    private static final boolean DEBUG = false;
+
+    // maximum length of an encoded domain name (RFC 1035 section 3.1)
+    static final int MAX_NAME_LENGTH = 255;
+    // a name has at most 127 labels, so a well-formed name never needs more pointers than that
+    static final int MAX_POINTER_HOPS = 127;
+
+    // resolves whose query has been sent, keyed by lower-case service name
+    private static final Map<String, InFlightResolve> sInFlightResolves = new HashMap<>();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * @see #discover(String, Callback, int)
+     */
+    public interface Callback {
+        void onResult(Result result);
+    }
+
+    static byte[] discoverPacket(String... serviceTypes) {
+        if (serviceTypes.length == 1) {
+            return queryPacket(serviceTypes[0], QCLASS_INTERNET | CLASS_FLAG_UNICAST, QTYPE_PTR);
+        }
+        // one PTR question per type in a single packet, sharing the compressed "._tcp.local" etc.
+        synchronized (sQueryPacketCache) {
+            sEncoder.reset();
+            for (String serviceType : serviceTypes) {
+                sEncoder.addQuestion(serviceType, QTYPE_PTR, QCLASS_INTERNET | CLASS_FLAG_UNICAST);
+            }
+            return sEncoder.toByteArray();
+        }
+    }
+
+    private static final int QUERY_PACKET_CACHE_SIZE = 64;
+
+    private static final QueryEncoder sEncoder = new QueryEncoder();
+
+    // recently built query packets, keyed by name, most recently used last
+    private static final LinkedHashMap<String, QueryPacket[]> sQueryPacketCache =
+            new LinkedHashMap<String, QueryPacket[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryPacket[]> eldest) {
+            return size() > QUERY_PACKET_CACHE_SIZE;
+        }
+    };
+
+    private static class QueryPacket {
+        final int qclass;
+        final int[] qtypes;
+        final byte[] data;
+
+        QueryPacket(int qclass, int[] qtypes, byte[] data) {
+            this.qclass = qclass;
+            this.qtypes = qtypes;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Returns an encoded query packet asking for {@code qtypes} of a single name. Packets are cached
+     * so repeated queries are not re-encoded; the returned array is shared and must not be modified.
+     */
+    static byte[] queryPacket(String serviceName, int qclass, int... qtypes) {
+        synchronized (sQueryPacketCache) {
+            QueryPacket[] packets = sQueryPacketCache.get(serviceName);
+            if (packets != null) {
+                for (QueryPacket packet : packets) {
+                    if (packet.qclass == qclass && Arrays.equals(packet.qtypes, qtypes)) {
+                        return packet.data;
+                    }
+                }
+            }
+            sEncoder.reset();
+            for (int qtype : qtypes) {
+                sEncoder.addQuestion(serviceName, qtype, qclass);
+            }
+            byte[] data = sEncoder.toByteArray();
+            QueryPacket packet = new QueryPacket(qclass, qtypes.clone(), data);
+            if (packets == null) {
+                packets = new QueryPacket[] { packet };
+            } else {
+                packets = Arrays.copyOf(packets, packets.length + 1);
+                packets[packets.length - 1] = packet;
+            }
+            sQueryPacketCache.put(serviceName, packets);
+            return data;
+        }
+    }
+
+    /**
+     * @param unicastResponse {@code true} to ask for unicast responses ("QU" questions), which
+     *                        only the sender receives; {@code false} for multicast responses
+     *                        ("QM"), which every host listening on the mDNS port can cache
+     * @return a query for the A, SRV and TXT records of a service
+     */
+    static byte[] resolvePacket(String serviceName, boolean unicastResponse) {
+        return queryPacket(serviceName, QCLASS_INTERNET | (unicastResponse ? CLASS_FLAG_UNICAST : CLASS_FLAG_MULTICAST),
+                QTYPE_A, QTYPE_SRV, QTYPE_TXT);
+    }
+
+    /**
+     * Builds the name to browse for the instances of a service type that have a particular subtype
+     * (RFC 6763 section 7.1), which can be passed to {@link #discover(String, Callback, int)} so
+     * that only those instances answer. Their PTR records point to instance names of the base
+     * type, e.g. {@code "device-1234._http._tcp.local"}.
+     * @param subtype the subtype, e.g. {@code "_printer"}
+     * @param serviceType the base service type, e.g. {@code "_http._tcp.local"}
+     * @return the subtype's browse name, e.g. {@code "_printer._sub._http._tcp.local"}
+     */
+    public static String subtypeName(String subtype, String serviceType) {
+        return subtype + "._sub." + serviceType;
+    }
+
+    /**
+     * Sends a discovery packet for the specified service and listens for reply packets, notifying
+     * a callback as services are discovered.
+     * @param serviceType the type of service to query in mDNS, e.g. {@code "_example._tcp.local"},
+     *                    or a subtype, see {@link #subtypeName(String, String)}
+     * @param callback receives callbacks with {@link Result} objects as answers are decoded from
+     *                 incoming reply packets.
+     * @param timeout duration in milliseconds to wait for answer packets. If {@code 0}, this method
+     *                will listen forever.
+     * @throws IOException
+     */
+    public static void discover(String serviceType, Callback callback, int timeout) throws IOException {
+        discover(new String[] { serviceType }, callback, timeout);
+    }
+
+    /**
+     * Like {@link #discover(String, Callback, int)}, but asks for several service types with a
+     * single query packet.
+     * @param serviceTypes the types of service to query in mDNS, e.g.
+     *                     {@code "_example._tcp.local"}
+     * @param callback receives callbacks with {@link Result} objects as answers are decoded from
+     *                 incoming reply packets, for any of the service types.
+     * @param timeout duration in milliseconds to wait for answer packets. If {@code 0}, this method
+     *                will listen forever.
+     * @throws IOException
+     */
+    public static void discover(String[] serviceTypes, Callback callback, int timeout) throws IOException {
+        discover(serviceTypes, callback, null, timeout);
+    }
+
+    /**
+     * Like {@link #discover(String[], Callback, int)}, but reports each record of the reply
+     * packets as it is decoded instead of a {@link Result} per packet. A packet holding many
+     * records, such as the PTR records of a large network, is not collapsed into one result, and
+     * records the visitor ignores cost no objects.
+     * @param visitor receives the questions and records of each incoming reply packet
+     * @see #decode(byte[], int, RecordVisitor)
+     */
+    public static void discoverRecords(String[] serviceTypes, RecordVisitor visitor, int timeout) throws IOException {
+        if (visitor == null) throw new IllegalArgumentException("no visitor");
+        discover(serviceTypes, null, visitor, timeout);
+    }
+
+    private static void discover(String[] serviceTypes, Callback callback, RecordVisitor visitor, int timeout) throws IOException {
+        if (timeout < 0) throw new IllegalArgumentException();
+        if (serviceTypes.length == 0) throw new IllegalArgumentException("no serviceTypes");
+        InetAddress group = InetAddress.getByName(MULTICAST_GROUP_ADDRESS);
+        MulticastSocket sock = new MulticastSocket();   // binds to a random free source port
+        if (DEBUG) System.out.println("Source port is " + sock.getLocalPort());
+        byte[] data = discoverPacket(serviceTypes);
+        if (DEBUG) System.out.println("Query packet:");
+        if (DEBUG) hexdump(data, 0, data.length);
+        DatagramPacket packet = new DatagramPacket(data, data.length, group, PORT);
+        sock.setTimeToLive(255);
+        sock.send(packet);
+        byte[] buf = new byte[1024];
+        packet = new DatagramPacket(buf, buf.length);
+        long endTime = 0;
+        if (timeout != 0) {
+            endTime = System.currentTimeMillis() + timeout;
+        }
+        while (true) {
+            if (timeout != 0) {
+                int remaining = (int) (endTime - System.currentTimeMillis());
+                if (remaining <= 0) {
+                    break;
+                }
+                sock.setSoTimeout(remaining);
+            }
+            try {
+                sock.receive(packet);
+            } catch (SocketTimeoutException e) {
+                break;
+            }
+            if (DEBUG) System.out.println("\n\nIncoming packet:");
+            if (DEBUG) hexdump(packet.getData(), 0, packet.getLength());
+            if (visitor != null) {
+                decode(packet.getData(), packet.getLength(), visitor);
+                continue;
+            }
+            Result result = decode(packet.getData(), packet.getLength());
+            if (callback != null) {
+                callback.onResult(result);
+            }
+        }
+    }
+
+    /**
+     * Ask for the A, SRV and TXT records of a particular service. If another thread is already
+     * resolving the same name, no further query is sent: this call waits, for at most its own
+     * timeout, and returns a copy of the other's result or fails as it does.
+     * @param serviceName the name of service to query in mDNS, e.g.
+     *                    {@code "device-1234._example._tcp.local"}
+     * @param timeout duration in milliseconds to wait for an answer packet. If {@code 0}, this
+     *                method will listen forever.
+     * @return the reply packet's decoded answer data
+     * @throws IOException
+     */
+    public static Result resolve(String serviceName, int timeout) throws IOException {
+        return resolve(serviceName, timeout, null);
+    }
+
+    /**
+     * As {@link #resolve(String, int)}, but can be abandoned from another thread.
+     * @param cancellation when cancelled, the resolve stops waiting at once and throws
+     *                     {@link InterruptedIOException}. May be {@code null}.
+     */
+    static Result resolve(String serviceName, int timeout, Cancellation cancellation) throws IOException {
+        if (timeout < 0) throw new IllegalArgumentException();
+        String key = serviceName.toLowerCase(Locale.US);
+        long endTime = System.currentTimeMillis() + timeout;
+        while (true) {
+            InFlightResolve inFlight;
+            boolean owner;
+            synchronized (sInFlightResolves) {
+                inFlight = sInFlightResolves.get(key);
+                owner = inFlight == null;
+                if (owner) {
+                    inFlight = new InFlightResolve();
+                    sInFlightResolves.put(key, inFlight);
+                }
+            }
+            int remaining = timeout == 0 ? 0 : (int) Math.max(1, endTime - System.currentTimeMillis());
+            if (!owner) {
+                if (DEBUG) System.out.println("Joining resolve in progress: " + serviceName);
+                Result result = inFlight.await(remaining, cancellation);
+                if (result != null) {
+                    return result;
+                }
+                // the resolve joined was cancelled, which says nothing about the service
+                continue;
+            }
+            Result result = null;
+            IOException error = null;
+            try {
+                result = resolveQuery(serviceName, remaining, cancellation);
+                return result;
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            } finally {
+                synchronized (sInFlightResolves) {
+                    sInFlightResolves.remove(key);
+                }
+                inFlight.complete(result, error,
+                        result == null && cancellation != null && cancellation.isCancelled());
+            }
+        }
+    }
+
+    /**
+     * A resolve whose query has been sent, which concurrent resolves of the same name wait for
+     * instead of sending a query of their own.
+     */
+    private static class InFlightResolve {
+        private boolean mDone;
+        private Result mResult;
+        private IOException mError;
+        private boolean mCancelled;
+
+        synchronized void complete(Result result, IOException error, boolean cancelled) {
+            mDone = true;
+            mCancelled = cancelled;
+            mResult = result;
+            mError = error;
+            notifyAll();
+        }
+
+        /**
+         * @return a copy of the result, or {@code null} if the resolve waited for was cancelled
+         */
+        Result await(int timeout, Cancellation cancellation) throws IOException {
+            if (cancellation == null) {
+                return awaitResult(timeout, null);
+            }
+            // cancelling wakes the wait below
+            cancellation.setBlocker(new Closeable() {
+                @Override
+                public void close() {
+                    synchronized (InFlightResolve.this) {
+                        InFlightResolve.this.notifyAll();
+                    }
+                }
+            });
+            try {
+                return awaitResult(timeout, cancellation);
+            } finally {
+                cancellation.clearBlocker();
+            }
+        }
+
+        private synchronized Result awaitResult(int timeout, Cancellation cancellation) throws IOException {
+            long endTime = System.currentTimeMillis() + timeout;
+            try {
+                while (!mDone) {
+                    if (cancellation != null) {
+                        cancellation.throwIfCancelled();
+                    }
+                    if (timeout == 0) {
+                        wait();
+                    } else {
+                        long remaining = endTime - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new SocketTimeoutException("timed out waiting for resolve in progress");
+                        }
+                        wait(remaining);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (mCancelled) {
+                return null;
+            }
+            if (mError instanceof SocketTimeoutException) {
+                throw new SocketTimeoutException(mError.getMessage());
+            } else if (mError != null || mResult == null) {
+                throw new IOException("resolve in progress failed", mError);
+            }
+            // each caller may modify its own result
+            return mResult.copy();
+        }
+    }
+
+    private static Result resolveQuery(String serviceName, int timeout, Cancellation cancellation) throws IOException {
+        InetAddress group = InetAddress.getByName(MULTICAST_GROUP_ADDRESS);
+        final MulticastSocket sock = new MulticastSocket();   // binds to a random free source port
+        try {
+            if (cancellation != null) {
+                // closing the socket makes a blocked receive() throw at once
+                cancellation.setBlocker(new Closeable() {
+                    @Override
+                    public void close() {
+                        sock.close();
+                    }
+                });
+            }
+            return resolveQuery(sock, group, serviceName, timeout);
+        } catch (SocketException e) {
+            if (cancellation != null && cancellation.isCancelled()) {
+                throw new InterruptedIOException("cancelled");
+            }
+            throw e;
+        } finally {
+            if (cancellation != null) {
+                cancellation.clearBlocker();
+            }
+            sock.close();
+        }
+    }
+
+    private static Result resolveQuery(MulticastSocket sock, InetAddress group, String serviceName, int timeout) throws IOException {
+        if (DEBUG) System.out.println("Source port is " + sock.getLocalPort());
+        if (DEBUG) System.out.println("Query packet:");
+        byte[] data = resolvePacket(serviceName, true);
+        if (DEBUG) hexdump(data, 0, data.length);
+        DatagramPacket packet = new DatagramPacket(data, data.length, group, PORT);
+        sock.setTimeToLive(255);
+        sock.send(packet);
+        byte[] buf = new byte[1024];
+        packet = new DatagramPacket(buf, buf.length);
+        Result result = new Result();
+        long endTime = 0;
+        if (timeout != 0) {
+            endTime = System.currentTimeMillis() + timeout;
+        }
+        // records could be returned in different packets, so we have to loop
+        // timeout applies to the acquisition of ALL packets
+        while (result.a == null || result.srv == null || result.txt == null) {
+            if (timeout != 0) {
+                int remaining = (int) (endTime - System.currentTimeMillis());
+                if (remaining <= 0) {
+                    break;
+                }
+                sock.setSoTimeout(remaining);
+            }
+            sock.receive(packet);
+            if (DEBUG) System.out.println("\n\nIncoming packet:");
+            if (DEBUG) hexdump(packet.getData(), 0, packet.getLength());
+            decode(packet.getData(), packet.getLength(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Takes an inventory of all services on the network: first asks which service types exist
+     * (RFC 6763 section 9), then browses each type as it is discovered. All queries share one
+     * socket, and several types are asked for in each query packet.
+     * @param timeout maximum duration in milliseconds for the whole inventory. It finishes sooner
+     *                if all browses complete.
+     * @param maxInFlight the most service types to be browsing at any one time; each browse waits
+     *                    about a second for answers
+     * @return a map of service type, e.g. {@code "_example._tcp.local"}, to the names of its
+     *         instances. Types are compared case-insensitively; types for which no instances
+     *         answered in time map to an empty set.
+     * @throws IOException
+     */
+    public static Map<String, Set<String>> enumerate(int timeout, int maxInFlight) throws IOException {
+        if (timeout <= 0 || maxInFlight <= 0) throw new IllegalArgumentException();
+        Map<String, Set<String>> inventory = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Deque<String> pending = new ArrayDeque<>();
+        // browses in progress, and the time each one finishes
+        Map<String, Long> inFlight = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        InetAddress group = InetAddress.getByName(MULTICAST_GROUP_ADDRESS);
+        MulticastSocket sock = new MulticastSocket();   // binds to a random free source port
+        try {
+            sock.setTimeToLive(255);
+            byte[] data = discoverPacket(SERVICE_TYPE_ENUMERATION);
+            sock.send(new DatagramPacket(data, data.length, group, PORT));
+            byte[] buf = new byte[1024];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            long endTime = System.currentTimeMillis() + timeout;
+            // the type enumeration is itself a browse, which types are discovered during
+            inFlight.put(SERVICE_TYPE_ENUMERATION, System.currentTimeMillis() + ENUMERATE_BROWSE_WINDOW);
+            while (true) {
+                long now = System.currentTimeMillis();
+                long nextEvent = endTime;
+                Iterator<Long> it = inFlight.values().iterator();
+                while (it.hasNext()) {
+                    long browseEnd = it.next();
+                    if (browseEnd <= now) {
+                        it.remove();
+                    } else if (browseEnd < nextEvent) {
+                        nextEvent = browseEnd;
+                    }
+                }
+                if (!pending.isEmpty() && inFlight.size() < maxInFlight) {
+                    String[] batch = new String[Math.min(pending.size(), maxInFlight - inFlight.size())];
+                    for (int i = 0; i < batch.length; i++) {
+                        batch[i] = pending.poll();
+                        inFlight.put(batch[i], now + ENUMERATE_BROWSE_WINDOW);
+                    }
+                    data = discoverPacket(batch);
+                    sock.send(new DatagramPacket(data, data.length, group, PORT));
+                    nextEvent = Math.min(nextEvent, now + ENUMERATE_BROWSE_WINDOW);
+                }
+                if (now >= endTime || (inFlight.isEmpty() && pending.isEmpty())) {
+                    break;
+                }
+                int remaining = (int) (nextEvent - now);
+                if (remaining <= 0) {
+                    continue;
+                }
+                sock.setSoTimeout(remaining);
+                try {
+                    sock.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                Result result;
+                try {
+                    result = decode(packet.getData(), packet.getLength());
+                } catch (IOException e) {
+                    // one malformed answer should not abort the whole inventory
+                    continue;
+                }
+                if (result.ptrs == null) {
+                    continue;
+                }
+                for (PTR ptr : result.ptrs) {
+                    if (SERVICE_TYPE_ENUMERATION.equalsIgnoreCase(ptr.fqdn)) {
+                        if (!inventory.containsKey(ptr.ptrname)) {
+                            inventory.put(ptr.ptrname, new TreeSet<String>(String.CASE_INSENSITIVE_ORDER));
+                            pending.add(ptr.ptrname);
+                        }
+                    } else {
+                        Set<String> instances = inventory.get(ptr.fqdn);
+                        if (instances != null) {
+                            instances.add(ptr.ptrname);
+                        }
+                    }
+                }
+            }
+        } finally {
+            sock.close();
+        }
+        return inventory;
+    }
+
+    /**
+     * Resolves many services from a single non-blocking socket, instead of a socket and a blocked
+     * thread per service, so that thousands of services can be resolved by one thread. Queries are
+     * sent as earlier services finish, so that at most {@code maxInFlight} are outstanding.
+     * @param serviceNames names of the services to query, e.g.
+     *                     {@code "device-1234._example._tcp.local"}
+     * @param timeout duration in milliseconds to wait for the answers of each service
+     * @param maxInFlight the most services to be waiting for at any one time
+     * @return a map of service name to the records received for it. Names are compared
+     *         case-insensitively. Services that did not answer in time are absent, and those that
+     *         answered in part lack some records.
+     * @throws InterruptedIOException if the calling thread is interrupted, whose interrupt status
+     *                                remains set
+     * @throws IOException
+     */
+    public static Map<String, Result> resolveAll(Collection<String> serviceNames, int timeout, int maxInFlight) throws IOException {
+        if (timeout <= 0 || maxInFlight <= 0) throw new IllegalArgumentException();
+        Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        Deque<String> pending = new ArrayDeque<>();
+        for (String serviceName : serviceNames) {
+            if (names.add(serviceName)) {
+                pending.add(serviceName);
+            }
+        }
+        Map<String, Result> results = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        // A records by host name, which may arrive in a different packet to the SRV naming the host
+        Map<String, A> addresses = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        // services whose query has been sent, and the time each one times out
+        Map<String, Long> inFlight = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        InetSocketAddress group = new InetSocketAddress(InetAddress.getByName(MULTICAST_GROUP_ADDRESS), PORT);
+        DatagramChannel channel = DatagramChannel.open();
+        Selector selector = Selector.open();
+        try {
+            channel.socket().bind(null);    // binds to a random free source port
+            setMulticastTimeToLive(channel);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            ByteBuffer buf = ByteBuffer.allocate(QueryEncoder.MAX_PACKET_SIZE);
+            while (true) {
+                // an interrupt makes every select() return at once, so would spin until the
+                // services time out
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("resolveAll() interrupted");
+                }
+                long now = System.currentTimeMillis();
+                long nextEvent = Long.MAX_VALUE;
+                Iterator<Map.Entry<String, Long>> it = inFlight.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Long> entry = it.next();
+                    Result result = results.get(entry.getKey());
+                    if (result != null) {
+                        attachAddress(result, addresses);
+                    }
+                    if (entry.getValue() <= now || (result != null && result.a != null && result.srv != null && result.txt != null)) {
+                        it.remove();
+                    } else {
+                        nextEvent = Math.min(nextEvent, entry.getValue());
+                    }
+                }
+                while (!pending.isEmpty() && inFlight.size() < maxInFlight) {
+                    String serviceName = pending.peek();
+                    byte[] data = resolvePacket(serviceName, true);
+                    if (channel.send(ByteBuffer.wrap(data), group) == 0) {
+                        // the send buffer is full, try again shortly
+                        nextEvent = Math.min(nextEvent, now + RESOLVE_ALL_SEND_RETRY);
+                        break;
+                    }
+                    pending.poll();
+                    inFlight.put(serviceName, now + timeout);
+                    nextEvent = Math.min(nextEvent, now + timeout);
+                }
+                if (inFlight.isEmpty() && pending.isEmpty()) {
+                    break;
+                }
+                selector.select(Math.max(1, nextEvent - now));
+                selector.selectedKeys().clear();
+                while (true) {
+                    buf.clear();
+                    if (channel.receive(buf) == null) {
+                        break;
+                    }
+                    List<Record> records;
+                    try {
+                        records = decodeRecords(buf.array(), buf.position());
+                    } catch (IOException e) {
+                        // one malformed answer should not abort the other services
+                        continue;
+                    }
+                    addAnswers(names, results, addresses, records);
+                }
+            }
+        } finally {
+            selector.close();
+            channel.close();
+        }
+        for (Result result : results.values()) {
+            attachAddress(result, addresses);
+        }
+        return results;
+    }
+
+    /**
+     * Sends the channel's multicast packets with an IP TTL of 255, as RFC 6762 section 11 requires
+     * and as the other queries do with {@link MulticastSocket#setTimeToLive(int)}. The option is
+     * missing from Android before 7.0 (API 24), where the system default TTL is left in place.
+     */
+    private static void setMulticastTimeToLive(DatagramChannel channel) throws IOException {
+        try {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 255);
+        } catch (LinkageError e) {
+            if (DEBUG) System.out.println("IP_MULTICAST_TTL unavailable: " + e);
+        }
+    }
+
+    /**
+     * Adds the records of one packet to the results of {@link #resolveAll(Collection, int, int)}.
+     * SRV and TXT records are kept for the requested names, and A records for any host.
+     */
+    static void addAnswers(Set<String> names, Map<String, Result> results, Map<String, A> addresses, List<Record> records) {
+        for (Record record : records) {
+            if (record.isGoodbye()) {
+                continue;
+            }
+            if (record instanceof A) {
+                addresses.put(record.fqdn, (A) record);
+                continue;
+            }
+            if (!(record instanceof SRV || record instanceof TXT) || !names.contains(record.fqdn)) {
+                continue;
+            }
+            Result result = results.get(record.fqdn);
+            if (result == null) {
+                result = new Result();
+                results.put(record.fqdn, result);
+            }
+            if (record instanceof SRV) {
+                result.srv = (SRV) record;
+            } else {
+                result.txt = (TXT) record;
+            }
+        }
+    }
+
+    private static void attachAddress(Result result, Map<String, A> addresses) {
+        if (result.a == null && result.srv != null && result.srv.target != null) {
+            result.a = addresses.get(result.srv.target);
+        }
+    }
+
+    private static void hexdump(byte[] data, int offset, int length) {
+        while (offset < length) {
+            System.out.printf("%08x", offset);
+            int origOffset = offset;
+            int col;
+            for (col = 0; col < 16 && offset < length; col++, offset++) {
+                System.out.printf(" %02x", data[offset] & 0xFF);
+            }
+            for (; col < 16; col++) {
+                System.out.printf("   ");
+            }
+            System.out.print(" ");
+            offset = origOffset;
+            for (col = 0; col < 16 && offset < length; col++, offset++) {
+                byte val = data[offset];
+                char c;
+                if (val >= 32 && val < 127) {
+                    c = (char) val;
+                } else {
+                    c = '.';
+                }
+                System.out.printf("%c", c);
+            }
+            System.out.println();
+        }
+    }
+
+    public static class Record {
+        /** Fully-Qualified Domain Name of the record. */
+        public String fqdn;
+        /** Time-to-live of the record, in seconds. */
+        public int ttl;
+        /**
+         * {@code true} if the responder set the cache-flush bit (RFC 6762 section 10.2): this record
+         * replaces all records of the same name and type, rather than adding to them.
+         */
+        public boolean cacheFlush;
+        /**
+         * Wall clock time in milliseconds at which the record was received, or 0 if it was not
+         * received, e.g. a record built by the application. Together with {@link #ttl} this is
+         * the record's expiry, which is kept when the record is merged into another result.
+         */
+        long receiveTime;
+
+        /**
+         * @return {@code true} if this record is a goodbye (TTL of zero), announcing that the
+         *         record is no longer valid, see RFC 6762 section 10.1
+         */
+        public boolean isGoodbye() {
+            return ttl == 0;
+        }
+    }
+
+    /** DNS A record */
+    public static class A extends Record {
+        /** The IPv4 address in dot-decimal notation, e.g. {@code "192.168.1.100"} */
+        public String ipaddr;
+        // the address as decoded, which is valid while ipaddr is still the string formatted from it
+        private Inet4Address mAddress;
+        private String mAddressText;
+
+        /**
+         * @return the address as an {@link Inet4Address}, without parsing {@link #ipaddr} if this
+         *         record was decoded from a packet, or {@code null} if {@code ipaddr} is not a
+         *         valid IPv4 address. No DNS lookup is performed.
+         */
+        public Inet4Address getAddress() {
+            if (mAddress == null || mAddressText != ipaddr) {
+                byte[] addr = ipaddr != null ? parseIPv4(ipaddr) : null;
+                if (addr == null) {
+                    return null;
+                }
+                setAddress(addr);
+            }
+            return mAddress;
+        }
+
+        void setAddress(byte[] addr) {
+            try {
+                mAddress = (Inet4Address) InetAddress.getByAddress(addr);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("expected 4 bytes for IPv4 addr", e);
+            }
+            ipaddr = mAddressText = (addr[0] & 0xFF) + "." + (addr[1] & 0xFF) + "." + (addr[2] & 0xFF) + "." + (addr[3] & 0xFF);
+        }
+    }
+
+    /**
+     * @return the four bytes of a dot-decimal IPv4 address, or {@code null} if it is not one
+     */
+    static byte[] parseIPv4(String ipaddr) {
+        byte[] addr = new byte[4];
+        int part = 0, value = -1;
+        for (int i = 0; i < ipaddr.length(); i++) {
+            char c = ipaddr.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value == -1 ? 0 : value * 10) + (c - '0');
+                if (value > 255) return null;
+            } else if (c == '.' && value != -1 && part < 3) {
+                addr[part++] = (byte) value;
+                value = -1;
+            } else {
+                return null;
+            }
+        }
+        if (part != 3 || value == -1) return null;
+        addr[3] = (byte) value;
+        return addr;
+    }
+
+    public static class SRV extends Record {
+        public int priority, weight, port;
+        /** Fully-Qualified Domain Name of the target service. */
+        public String target;
+    }
+
+    /** DNS PTR record */
+    public static class PTR extends Record {
+        /**
+         * The name pointed to, e.g. the service instance {@code "device-1234._example._tcp.local"}
+         * in answer to a query for {@code "_example._tcp.local"}.
+         */
+        public String ptrname;
+    }
+
+    public static class TXT extends Record {
+        /**
+         * The content of the TXT record's key-value store as a {@link Map} view of the raw record
+         * data. Individual lookups scan the data; the full map is decoded only if it is iterated.
+         * {@code put}, {@code remove} and {@code clear} re-encode the data, so a TXT built this
+         * way is sent, cached and indexed as it reads. The field is final: a TXT can no longer be
+         * given a different map, fill in this one instead.
+         */
+        public final Map<String, String> dict;
+
+        /** The raw rdata of the record: a sequence of length-prefixed segments. */
+        byte[] data;
+
+        public TXT() {
+            this(new byte[0]);
+        }
+
+        TXT(byte[] data) {
+            this.data = data;
+            this.dict = new TXTMap(this);
+        }
+
+        /**
+         * @param key attribute name to look up
+         * @return {@code true} if the attribute is present, either as a boolean attribute or with a
+         *         value
+         */
+        public boolean containsKey(String key) {
+            return findSegment(key, false) != -1;
+        }
+
+        /**
+         * @param key attribute name to look up
+         * @return the attribute's value decoded as UTF-8, or {@code null} if the attribute is not
+         *         present or has no value
+         */
+        public String get(String key) {
+            int pos = findSegment(key, false);
+            return pos == -1 ? null : value(pos);
+        }
+
+        /**
+         * @param key attribute name to look up
+         * @return a copy of the attribute's binary value, or {@code null} if the attribute is not
+         *         present or has no value
+         */
+        public byte[] getBytes(String key) {
+            int pos = findSegment(key, false);
+            int valuePos = pos == -1 ? -1 : valueOffset(pos);
+            if (valuePos == -1) return null;
+            return Arrays.copyOfRange(data, valuePos, pos + 1 + (data[pos] & 0xFF));
+        }
+
+        /**
+         * Like {@link #get(String)}, but compares keys case-insensitively, as RFC 6763 section 6.4
+         * specifies, and tells an absent attribute from one without a value.
+         * @return the attribute's value, {@code null} if it has no value, or {@code absent} if the
+         *         attribute is not present
+         */
+        String getIgnoreCase(String key, String absent) {
+            int pos = findSegment(key, true);
+            return pos == -1 ? absent : value(pos);
+        }
+
+        /**
+         * @return the value of the segment at {@code pos} decoded as UTF-8, or {@code null} if it
+         *         has none
+         */
+        private String value(int pos) {
+            int valuePos = valueOffset(pos);
+            if (valuePos == -1) return null;
+            return new String(data, valuePos, (pos + 1 + (data[pos] & 0xFF)) - valuePos, UTF_8);
+        }
+
+        /**
+         * @param ignoreCase whether ASCII letters in keys match regardless of case
+         * @return offset of the first segment whose key equals {@code key}, or {@code -1}
+         */
+        private int findSegment(String key, boolean ignoreCase) {
+            // non-ASCII keys are not permitted by RFC6763 but compare them correctly anyway
+            byte[] keyBytes = null;
+            int keyLength = key.length();
+            for (int i = 0; i < keyLength; i++) {
+                if (key.charAt(i) >= 0x80) {
+                    keyBytes = key.getBytes(UTF_8);
+                    keyLength = keyBytes.length;
+                    break;
+                }
+            }
+            for (int pos = 0; pos < data.length; pos += 1 + (data[pos] & 0xFF)) {
+                int length = data[pos] & 0xFF;
+                if (length == 0 || segmentKeyLength(pos) != keyLength) continue;
+                boolean match = true;
+                for (int i = 0; i < keyLength && match; i++) {
+                    int b = data[pos + 1 + i] & 0xFF;
+                    int c = keyBytes != null ? keyBytes[i] & 0xFF : key.charAt(i);
+                    match = b == c || ignoreCase && toLowerAscii(b) == toLowerAscii(c);
+                }
+                if (match) {
+                    // from RFC6763
+                    // If a client receives a TXT record containing the same key more than once, then
+                    // the client MUST silently ignore all but the first occurrence of that attribute."
+                    return pos;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Replaces the data with its segments whose key is not {@code key}, followed by
+         * {@code segment} if it is not {@code null}.
+         */
+        private void rewrite(String key, byte[] segment) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + (segment != null ? segment.length : 0));
+            for (int pos = 0; pos < data.length; pos += 1 + (data[pos] & 0xFF)) {
+                int length = data[pos] & 0xFF;
+                if (length == 0 || !key.equals(new String(data, pos + 1, segmentKeyLength(pos), UTF_8))) {
+                    out.write(data, pos, 1 + length);
+                }
+            }
+            if (segment != null) {
+                out.write(segment, 0, segment.length);
+            }
+            data = out.toByteArray();
+        }
+
+        /**
+         * @return the length-prefixed segment {@code key=value}, or just {@code key} for a
+         *         {@code null} value
+         */
+        private static byte[] segment(String key, String value) {
+            if (key.isEmpty() || key.indexOf('=') != -1) {
+                throw new IllegalArgumentException("invalid TXT key: " + key);
+            }
+            byte[] keyBytes = key.getBytes(UTF_8);
+            byte[] valueBytes = value != null ? value.getBytes(UTF_8) : null;
+            int length = keyBytes.length + (valueBytes != null ? 1 + valueBytes.length : 0);
+            if (length > 255) {
+                throw new IllegalArgumentException("TXT attribute longer than 255 bytes: " + key);
+            }
+            byte[] segment = new byte[1 + length];
+            segment[0] = (byte) length;
+            System.arraycopy(keyBytes, 0, segment, 1, keyBytes.length);
+            if (valueBytes != null) {
+                segment[1 + keyBytes.length] = '=';
+                System.arraycopy(valueBytes, 0, segment, 2 + keyBytes.length, valueBytes.length);
+            }
+            return segment;
+        }
+
+        private static int toLowerAscii(int c) {
+            return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+        }
+
+        private int segmentKeyLength(int pos) {
+            int end = pos + 1 + (data[pos] & 0xFF);
+            for (int i = pos + 1; i < end; i++) {
+                if (data[i] == '=') return i - pos - 1;
+            }
+            return end - pos - 1;
+        }
+
+        /**
+         * @return offset of the value in the segment at {@code pos}, or {@code -1} if there is none
+         */
+        private int valueOffset(int pos) {
+            int keyLength = segmentKeyLength(pos);
+            return keyLength == (data[pos] & 0xFF) ? -1 : pos + 1 + keyLength + 1;
+        }
+    }
+
+    /**
+     * {@link Map} view over the raw data of a {@link TXT} record. {@link #get(Object)} and
+     * {@link #containsKey(Object)} scan the data in place; the entries are decoded the first time
+     * the map is iterated. {@link #put}, {@link #remove} and {@link #clear} write through to the
+     * data; the key, value and entry views are read-only.
+     */
+    private static class TXTMap extends AbstractMap<String, String> {
+        private final TXT mTxt;
+        private Set<Entry<String, String>> mEntries;
+        // the data mEntries was decoded from, which writes replace
+        private byte[] mEntriesData;
+
+        TXTMap(TXT txt) {
+            mTxt = txt;
+        }
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? mTxt.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && mTxt.containsKey((String) key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            byte[] segment = TXT.segment(key, value);
+            String previous = mTxt.get(key);
+            mTxt.rewrite(key, segment);
+            return previous;
+        }
+
+        @Override
+        public String remove(Object key) {
+            if (!containsKey(key)) {
+                return null;
+            }
+            String previous = mTxt.get((String) key);
+            mTxt.rewrite((String) key, null);
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            mTxt.data = new byte[0];
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            byte[] data = mTxt.data;
+            if (mEntries == null || mEntriesData != data) {
+                Map<String, String> dict = new LinkedHashMap<>();
+                for (int pos = 0; pos < data.length; pos += 1 + (data[pos] & 0xFF)) {
+                    int length = data[pos] & 0xFF;
+                    if (length == 0) continue;
+                    int keyLength = mTxt.segmentKeyLength(pos);
+                    String key = new String(data, pos + 1, keyLength, UTF_8);
+                    if (!dict.containsKey(key)) {
+                        int valuePos = mTxt.valueOffset(pos);
+                        String value = valuePos == -1 ? null
+                                : new String(data, valuePos, pos + 1 + length - valuePos, UTF_8);
+                        dict.put(key, value);
+                    }
+                }
+                mEntries = Collections.unmodifiableMap(dict).entrySet();
+                mEntriesData = data;
+            }
+            return mEntries;
+        }
+    }
+
+    /**
+     * Represents the decoded content of the answer sections of an incoming packet.
+     * When the corresponding data is present in an answer, fields will be initialized with
+     * populated data structures. When no such answer is present in the packet, fields will be
+     * {@code null}.
+     */
+    public static class Result {
+        public A a;
+        public SRV srv;
+        public TXT txt;
+        /** All PTR records in the packet, in the order they appear. */
+        public List<PTR> ptrs;
+
+        /**
+         * @return the address and port at which the service can be reached, or {@code null} if the
+         *         A or SRV record is missing. No DNS lookup is performed.
+         */
+        public InetSocketAddress getSocketAddress() {
+            Inet4Address address = a != null ? a.getAddress() : null;
+            return address != null && srv != null ? new InetSocketAddress(address, srv.port) : null;
+        }
+
+        /**
+         * @return a shallow copy, so that records can be replaced without affecting this result
+         */
+        Result copy() {
+            Result copy = new Result();
+            copy.a = a;
+            copy.srv = srv;
+            copy.txt = txt;
+            copy.ptrs = ptrs;
+            return copy;
+        }
+    }
+
+    /**
+     * Applies the records of a newly received packet to a previously resolved service. A record
+     * with the cache-flush bit replaces the service's record of the same type; a record without it
+     * only fills in a type the service does not have yet. Goodbye records are ignored here.
+     * @param existing the service's current records, which are not modified
+     * @param update records decoded from a packet
+     * @param serviceName the name of the service, which SRV and TXT records must match. A records
+     *                    must match the target host of the service's SRV record.
+     * @return a copy of {@code existing} with the records replaced, or {@code null} if no record
+     *         applied
+     */
+    static Result applyUpdate(Result existing, Result update, String serviceName) {
+        Result result = null;
+        if (applies(update.srv, existing.srv, serviceName)) {
+            result = existing.copy();
+            result.srv = update.srv;
+        }
+        if (applies(update.txt, existing.txt, serviceName)) {
+            if (result == null) result = existing.copy();
+            result.txt = update.txt;
+        }
+        SRV srv = result != null ? result.srv : existing.srv;
+        if (srv != null && applies(update.a, existing.a, srv.target)) {
+            if (result == null) result = existing.copy();
+            result.a = update.a;
+        }
+        return result;
+    }
+
+    private static boolean applies(Record update, Record existing, String name) {
+        return update != null && !update.isGoodbye() && name != null && name.equalsIgnoreCase(update.fqdn)
+                && (update.cacheFlush || existing == null);
+    }
+
+    static Result decode(byte[] packet, int packetLength) throws IOException {
+        Result result = new Result();
+        decode(packet, packetLength, result);
+        return result;
+    }
+
+    static void decode(byte[] packet, int packetLength, Result result) throws IOException {
+        decode(new NameDecoder(packet, packetLength), result);
+    }
+
+    static void decode(NameDecoder names, Result result) throws IOException {
+        decode(names, new ResultBuilder(result, names));
+    }
+
+    /**
+     * Decodes a packet, reporting each question and record to {@code visitor} in the order they
+     * appear. No objects are created for the records, so a consumer interested in only some of
+     * them does not pay for the rest.
+     * @param packet the packet data, starting at index 0
+     * @param packetLength length of the packet, which may be less than {@code packet.length}
+     * @throws IOException if the packet is malformed, possibly after some records have been
+     *                     reported, or if the visitor throws it
+     */
+    public static void decode(byte[] packet, int packetLength, RecordVisitor visitor) throws IOException {
+        decode(new NameDecoder(packet, packetLength), visitor);
+    }
+
+    private static void decode(NameDecoder names, RecordVisitor visitor) throws IOException {
+        byte[] packet = names.mPacket;
+        int packetLength = names.mPacketLength;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet, 0, packetLength));
+        short transactionID = dis.readShort();
+        short flags = dis.readShort();
+        int questions = dis.readUnsignedShort();
+        int answers = dis.readUnsignedShort();
+        int authorityRRs = dis.readUnsignedShort();
+        int additionalRRs = dis.readUnsignedShort();
+        // decode the queries
+        for (int i = 0; i < questions; i++) {
+            String fqdn = decodeFQDN(dis, packetLength, names);
+            int type = dis.readUnsignedShort();
+            int qclass = dis.readUnsignedShort();
+            visitor.onQuestion(fqdn, type, qclass);
+        }
+        // decode the answers
+        for (int i = 0; i < answers + authorityRRs + additionalRRs; i++) {
+            String fqdn = decodeFQDN(dis, packetLength, names);
+            int type = dis.readUnsignedShort();
+            int aclass = dis.readUnsignedShort();
+            int ttl = dis.readInt();
+            int length = dis.readUnsignedShort();
+            if (length > dis.available()) throw new EOFException("record data exceeds packet");
+            // the record data is passed as a slice of the packet, never copied here
+            int offset = packetLength - dis.available();
+            dis.skipBytes(length);
+            visitor.onRecord(fqdn, type, aclass, ttl, packet, packetLength, offset, length);
+        }
+    }
+
+    /**
+     * Receives the contents of a packet as it is decoded, see
+     * {@link #decode(byte[], int, RecordVisitor)}.
+     */
+    public interface RecordVisitor {
+        /**
+         * @param name the name asked about, e.g. {@code "_example._tcp.local"}
+         * @param type the question type, e.g. 12 for PTR
+         * @param qclass the question class, with the unicast-response bit in its top bit
+         */
+        void onQuestion(String name, int type, int qclass);
+
+        /**
+         * The record data is {@code length} bytes of {@code packet} from {@code offset}. It is
+         * only valid during the call, as the packet buffer may be reused. Domain names within it,
+         * such as an SRV target or a PTR name, can be read with
+         * {@link #decodeName(byte[], int, int, int)}.
+         * @param name the record's owner name, e.g. {@code "device-1234._example._tcp.local"}
+         * @param type the record type, e.g. 33 for SRV
+         * @param rclass the record class, with the cache-flush bit in its top bit
+         * @param ttl time to live in seconds, 0 for a goodbye
+         * @param packetLength length of the packet, which may be less than {@code packet.length}
+         * @throws IOException to stop decoding, e.g. if the record data is malformed
+         */
+        void onRecord(String name, int type, int rclass, int ttl, byte[] packet, int packetLength, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Decodes a domain name from record data, following compression pointers into the rest of
+     * the packet.
+     * @param packet the packet passed to {@link RecordVisitor#onRecord}
+     * @param packetLength the packet length passed with it, beyond which pointers are invalid
+     * @param offset where the name starts
+     * @param length the number of bytes from {@code offset} that belong to the record data
+     */
+    public static String decodeName(byte[] packet, int packetLength, int offset, int length) throws IOException {
+        return new NameDecoder(packet, packetLength, false).decode(offset, offset + length);
+    }
+
+    /**
+     * Collects a packet's A, SRV, TXT and PTR records into a {@link Result}. Of several records of
+     * the same type, the last is kept, except that all PTR records are kept.
+     */
+    private static class ResultBuilder implements RecordVisitor {
+        private final Result mResult;
+        private final NameDecoder mNames;
+
+        ResultBuilder(Result result, NameDecoder names) {
+            mResult = result;
+            mNames = names;
+        }
+
+        @Override
+        public void onQuestion(String name, int type, int qclass) {
+        }
+
+        @Override
+        public void onRecord(String name, int type, int rclass, int ttl, byte[] packet, int packetLength, int offset, int length) throws IOException {
+            Record record = decodeRecord(name, type, rclass, ttl, mNames, offset, length);
+            if (record instanceof A) {
+                mResult.a = (A) record;
+            } else if (record instanceof SRV) {
+                mResult.srv = (SRV) record;
+            } else if (record instanceof TXT) {
+                mResult.txt = (TXT) record;
+            } else if (record instanceof PTR) {
+                if (mResult.ptrs == null) {
+                    mResult.ptrs = new ArrayList<>();
+                }
+                mResult.ptrs.add((PTR) record);
+            }
+        }
+    }
+
+    /**
+     * Decodes every A, SRV, TXT and PTR record of a packet, in the order they appear. Unlike
+     * {@link #decode(byte[], int)}, several records of the same type are all kept, e.g. an
+     * announcement of several services.
+     */
+    static List<Record> decodeRecords(byte[] packet, int packetLength) throws IOException {
+        final List<Record> records = new ArrayList<>();
+        final NameDecoder names = new NameDecoder(packet, packetLength);
+        decode(names, new RecordVisitor() {
+            @Override
+            public void onQuestion(String name, int type, int qclass) {
+            }
+
+            @Override
+            public void onRecord(String name, int type, int rclass, int ttl, byte[] packet, int packetLength, int offset, int length) throws IOException {
+                Record record = decodeRecord(name, type, rclass, ttl, names, offset, length);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        });
+        return records;
+    }
+
+    /**
+     * @return the decoded record, or {@code null} if its type is not one of A, SRV, TXT and PTR
+     */
+    private static Record decodeRecord(String name, int type, int rclass, int ttl, NameDecoder names,
+                                       int offset, int length) throws IOException {
+        byte[] packet = names.mPacket;
+        if (DEBUG) System.out.printf("%s record%n", typeString(type));
+        if (DEBUG) System.out.println("Name: " + name);
+        Record record;
+        switch (type) {
+            case QTYPE_A:
+                record = decodeA(packet, offset, length);
+                break;
+            case QTYPE_SRV:
+                record = decodeSRV(names, offset, length);
+                break;
+            case QTYPE_PTR:
+                PTR ptr = new PTR();
+                ptr.ptrname = decodePTR(names, offset, length);
+                record = ptr;
+                break;
+            case QTYPE_TXT:
+                record = decodeTXT(packet, offset, length);
+                break;
+            default:
+                if (DEBUG) hexdump(packet, offset, length);
+                return null;
+        }
+        record.fqdn = name;
+        record.ttl = ttl;
+        record.cacheFlush = (rclass & CLASS_FLAG_CACHE_FLUSH) != 0;
+        record.receiveTime = System.currentTimeMillis();
+        return record;
+    }
+
+    /**
+     * Decodes the questions of a query sent by another host, for duplicate question suppression
+     * (RFC 6762 section 7.3): the answers to a multicast ("QM") question are multicast too, so a
+     * host listening on the mDNS port receives them without asking the same question itself.
+     * @return the names asked about in QM questions, or an empty list if the packet is a response
+     *         or carries known answers, which might suppress some of the answers
+     */
+    static List<String> decodeQuestions(byte[] packet, int packetLength) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet, 0, packetLength));
+        short transactionID = dis.readShort();
+        short flags = dis.readShort();
+        int questions = dis.readUnsignedShort();
+        int answers = dis.readUnsignedShort();
+        int authorityRRs = dis.readUnsignedShort();
+        int additionalRRs = dis.readUnsignedShort();
+        if ((flags & FLAG_RESPONSE) != 0 || answers != 0) {
+            return Collections.emptyList();
+        }
+        NameDecoder decoder = new NameDecoder(packet, packetLength);
+        List<String> names = new ArrayList<>(questions);
+        for (int i = 0; i < questions; i++) {
+            String fqdn = decodeFQDN(dis, packetLength, decoder);
+            short type = dis.readShort();
+            short qclass = dis.readShort();
+            if ((qclass & CLASS_FLAG_UNICAST) == 0) {
+                names.add(fqdn);
+            }
+        }
+        return names;
+    }
+
+    private static SRV decodeSRV(NameDecoder names, int offset, int length) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(names.mPacket, offset, length));
+        SRV srv = new SRV();
+        srv.priority = dis.readUnsignedShort();
+        srv.weight = dis.readUnsignedShort();
+        srv.port = dis.readUnsignedShort();
+        srv.target = decodeFQDN(dis, offset + length, names);
+        if (DEBUG) System.out.printf("Priority: %d Weight: %d Port: %d Target: %s%n", srv.priority, srv.weight, srv.port, srv.target);
+        return srv;
+    }
+
+    private static String typeString(int type) {
+        switch (type) {
+            case QTYPE_A:
+                return "A";
+            case QTYPE_PTR:
+                return "PTR";
+            case QTYPE_SRV:
+                return "SRV";
+            case QTYPE_TXT:
+                return "TXT";
+            default:
+                return "Unknown";
+        }
+    }
+
+    private static String decodePTR(NameDecoder names, int offset, int length) throws IOException {
+        String fqdn = names.decode(offset, offset + length);
+        if (DEBUG) System.out.println(fqdn);
+        return fqdn;
+    }
+
+    private static A decodeA(byte[] packet, int offset, int length) throws IOException {
+        if (length < 4) throw new IOException("expected 4 bytes for IPv4 addr");
+        A a = new A();
+        a.setAddress(Arrays.copyOfRange(packet, offset, offset + 4));
+        if (DEBUG) System.out.println("Ipaddr: " + a.ipaddr);
+        return a;
+    }
+
+    private static TXT decodeTXT(byte[] packet, int offset, int length) throws IOException {
+        // only validate the segment lengths here, key-value pairs are decoded on demand by TXT
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            pos += 1 + (packet[pos] & 0xFF);
+        }
+        if (pos != end) throw new EOFException("TXT segment exceeds record length");
+        TXT txt = new TXT(Arrays.copyOfRange(packet, offset, end));
+        if (DEBUG) System.out.println(txt.dict);
+        return txt;
+    }
+
+    /**
+     * Decodes the name at the stream's position and skips past it.
+     * @param limit the offset in the packet where the stream ends
+     */
+    private static String decodeFQDN(DataInputStream dis, int limit, NameDecoder names) throws IOException {
+        int offset = limit - dis.available();
+        String fqdn = names.decode(offset, limit);
+        dis.skipBytes(names.end() - offset);
+        return fqdn;
+    }
+
+    /**
+     * Decodes the domain names of one packet. Where each name's labels were read from is
+     * remembered, so labels that later names point back to, as most names in a response do, are
+     * read only once, and a name that is wholly a pointer to an earlier one costs no new string.
+     * However the pointers of a packet are crafted, decoding all of its names reads each byte of
+     * it at most once, apart from the name that fails to decode.
+     */
+    static final class NameDecoder {
+        // the fields of each entry in mEntryData, which describes the name from one offset
+        private static final int ENTRY_OFFSET = 0;
+        // the decoded name holding the suffix, an index into mNames, and where the suffix starts
+        private static final int ENTRY_NAME = 1, ENTRY_START = 2;
+        // the suffix's encoded length, without the terminating zero, and its pointers
+        private static final int ENTRY_LABEL_BYTES = 3, ENTRY_HOPS = 4;
+        // where the name ends when read in place from its offset
+        private static final int ENTRY_END = 5;
+        private static final int ENTRY_SIZE = 6;
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final byte[] mPacket;
+        private final int mPacketLength;
+        private final boolean mRemember;
+        private int mEnd;
+        private int mReads;
+        private long mAllocatedBytes;
+        private StringBuilder mBuilder;
+
+        private final List<String> mNames = new ArrayList<>();
+        private int[] mEntryData;
+        private int mEntries;
+        // open-addressing table from offset + 1, or 0 for a free slot, to entry index
+        private int[] mTableKeys;
+        private int[] mTableValues;
+        // for the name being decoded: where each label, or the remembered suffix that ends the
+        // name, starts in it, and where each run of bytes read in place ends
+        private int[] mLabelStarts;
+        private int[] mRunEnds;
+
+        NameDecoder(byte[] packet, int packetLength) {
+            this(packet, packetLength, true);
+        }
+
+        /**
+         * @param remember {@code false} to decode names independently, for a decoder that is used
+         *                 for a single name
+         */
+        NameDecoder(byte[] packet, int packetLength, boolean remember) {
+            mPacket = packet;
+            mPacketLength = packetLength;
+            mRemember = remember;
+        }
+
+        /** @return the offset just after the name last decoded, as stored at its offset */
+        int end() {
+            return mEnd;
+        }
+
+        /** @return how many label lengths and pointers have been read from the packet */
+        int reads() {
+            return mReads;
+        }
+
+        /**
+         * @return the bytes of the strings and arrays allocated so far, counting two bytes per
+         *         character and four per int, for tests to bound
+         */
+        long allocatedBytes() {
+            return mAllocatedBytes;
+        }
+
+        /**
+         * @param offset where the name starts
+         * @param limit the end of the data that holds the name, though pointers may lead anywhere
+         *              in the packet
+         */
+        String decode(int offset, int limit) throws IOException {
+            if (mBuilder == null) {
+                mBuilder = new StringBuilder(64);
+                mAllocatedBytes += 2 * mBuilder.capacity();
+            }
+            StringBuilder result = mBuilder;
+            result.setLength(0);
+            int capacity = result.capacity();
+            // Each name costs at most MAX_NAME_LENGTH bytes and MAX_POINTER_HOPS pointers to
+            // decode, which also ends any cycle of pointers. The entries of the offsets visited
+            // are filled in from index mEntries, and only kept once the name has decoded.
+            int first = mEntries;
+            int visits = 0;
+            int labels = 0;
+            int labelBytes = 0;
+            int hops = 0;
+            int runs = 0;
+            // the remembered entry that ends the name, and whether it is the whole name
+            int hit = -1;
+            boolean whole = false;
+            int pos = offset;
+            int end = Math.min(limit, mPacketLength);
+            while (true) {
+                hit = find(pos);
+                if (hit != -1) {
+                    int e = hit * ENTRY_SIZE;
+                    if (mEntryData[e + ENTRY_END] > end) throw new EOFException("name exceeds record data");
+                    labelBytes += mEntryData[e + ENTRY_LABEL_BYTES];
+                    if (labelBytes + 1 > MAX_NAME_LENGTH) {
+                        throw new IOException("domain name too long, possibly cyclic");
+                    }
+                    hops += mEntryData[e + ENTRY_HOPS];
+                    if (hops > MAX_POINTER_HOPS) {
+                        throw new IOException("too many pointers in domain name, possibly cyclic");
+                    }
+                    runs = addRun(runs, mEntryData[e + ENTRY_END]);
+                    String name = mNames.get(mEntryData[e + ENTRY_NAME]);
+                    int start = mEntryData[e + ENTRY_START];
+                    whole = result.length() == 0;
+                    if (start < name.length()) {
+                        if (!whole) result.append('.');
+                        labels = addLabel(labels, result.length());
+                        result.append(name, start, name.length());
+                    }
+                    break;
+                }
+                if (pos >= end) throw new EOFException("name exceeds packet");
+                if (mRemember) {
+                    visit(first + visits, pos, labels, labelBytes, hops, runs);
+                }
+                visits++;
+                mReads++;
+                int length = mPacket[pos] & 0xFF;
+                if (length == 0) {
+                    runs = addRun(runs, pos + 1);
+                    break;
+                }
+                if ((length & 0xc0) == 0xc0) {
+                    // this is a compression method, the remainder of the string is a pointer to elsewhere in the packet
+                    if (++hops > MAX_POINTER_HOPS) {
+                        throw new IOException("too many pointers in domain name, possibly cyclic");
+                    }
+                    if (pos + 1 >= end) throw new EOFException("pointer exceeds packet");
+                    runs = addRun(runs, pos + 2);
+                    pos = ((length & 0x3f) << 8) | (mPacket[pos + 1] & 0xFF);
+                    end = mPacketLength;
+                    continue;
+                }
+                labelBytes += 1 + length;
+                if (labelBytes + 1 > MAX_NAME_LENGTH) {
+                    throw new IOException("domain name too long, possibly cyclic");
+                }
+                if (pos + 1 + length > end) throw new EOFException("label exceeds packet");
+                if (result.length() > 0) result.append('.');
+                labels = addLabel(labels, result.length());
+                appendLabel(result, mPacket, pos + 1, length);
+                pos += 1 + length;
+            }
+            mEnd = mRunEnds[0];
+            String name;
+            int nameIndex = -1;
+            if (whole) {
+                // a pointer to an earlier name or its suffix, which is kept for the next pointer
+                int e = hit * ENTRY_SIZE;
+                nameIndex = mEntryData[e + ENTRY_NAME];
+                name = mNames.get(nameIndex);
+                int start = mEntryData[e + ENTRY_START];
+                if (start > 0) {
+                    name = start < name.length() ? name.substring(start) : "";
+                    mAllocatedBytes += 2 * name.length();
+                    nameIndex = mNames.size();
+                    mNames.add(name);
+                    mEntryData[e + ENTRY_NAME] = nameIndex;
+                    mEntryData[e + ENTRY_START] = 0;
+                }
+            } else {
+                name = result.toString();
+                mAllocatedBytes += 2 * name.length();
+            }
+            if (result.capacity() != capacity) {
+                mAllocatedBytes += 2 * result.capacity();
+            }
+            if (visits > 0 && mRemember) {
+                if (nameIndex == -1) {
+                    nameIndex = mNames.size();
+                    mNames.add(name);
+                }
+                for (int i = 0; i < visits; i++) {
+                    int e = (first + i) * ENTRY_SIZE;
+                    int label = mEntryData[e + ENTRY_START];
+                    mEntryData[e + ENTRY_NAME] = nameIndex;
+                    mEntryData[e + ENTRY_START] = label < labels ? mLabelStarts[label] : name.length();
+                    mEntryData[e + ENTRY_LABEL_BYTES] = labelBytes - mEntryData[e + ENTRY_LABEL_BYTES];
+                    mEntryData[e + ENTRY_HOPS] = hops - mEntryData[e + ENTRY_HOPS];
+                    mEntryData[e + ENTRY_END] = mRunEnds[mEntryData[e + ENTRY_END]];
+                    put(mEntryData[e + ENTRY_OFFSET], first + i);
+                }
+                mEntries = first + visits;
+            }
+            return name;
+        }
+
+        /**
+         * Starts the entry of an offset visited, with the labels, label bytes, pointers and runs
+         * of the name before it, which are made relative once the name is complete.
+         */
+        private void visit(int entry, int offset, int label, int labelBytes, int hops, int run) {
+            int e = entry * ENTRY_SIZE;
+            if (mEntryData == null || e + ENTRY_SIZE > mEntryData.length) {
+                mEntryData = grow(mEntryData, Math.max(INITIAL_CAPACITY, 2 * (entry + 1)) * ENTRY_SIZE);
+            }
+            mEntryData[e + ENTRY_OFFSET] = offset;
+            mEntryData[e + ENTRY_START] = label;
+            mEntryData[e + ENTRY_LABEL_BYTES] = labelBytes;
+            mEntryData[e + ENTRY_HOPS] = hops;
+            mEntryData[e + ENTRY_END] = run;
+        }
+
+        private int addLabel(int labels, int start) {
+            if (mLabelStarts == null || labels == mLabelStarts.length) {
+                mLabelStarts = grow(mLabelStarts, Math.max(INITIAL_CAPACITY, 2 * labels));
+            }
+            mLabelStarts[labels] = start;
+            return labels + 1;
+        }
+
+        private int addRun(int runs, int end) {
+            if (mRunEnds == null || runs == mRunEnds.length) {
+                mRunEnds = grow(mRunEnds, Math.max(INITIAL_CAPACITY, 2 * runs));
+            }
+            mRunEnds[runs] = end;
+            return runs + 1;
+        }
+
+        /** @return the entry of {@code offset}, or {@code -1} if it has none */
+        private int find(int offset) {
+            if (mTableKeys == null) {
+                return -1;
+            }
+            int mask = mTableKeys.length - 1;
+            for (int i = offset & mask; ; i = (i + 1) & mask) {
+                int key = mTableKeys[i];
+                if (key == 0) {
+                    return -1;
+                }
+                if (key == offset + 1) {
+                    return mTableValues[i];
+                }
+            }
+        }
+
+        /** Adds the entry with index {@code entry}, whose predecessors are all in the table. */
+        private void put(int offset, int entry) {
+            if (mTableKeys == null || 2 * (entry + 1) > mTableKeys.length) {
+                int capacity = mTableKeys == null ? 2 * INITIAL_CAPACITY : 2 * mTableKeys.length;
+                mTableKeys = grow(null, capacity);
+                mTableValues = grow(null, capacity);
+                for (int i = 0; i < entry; i++) {
+                    insert(mEntryData[i * ENTRY_SIZE + ENTRY_OFFSET], i);
+                }
+            }
+            insert(offset, entry);
+        }
+
+        private void insert(int offset, int entry) {
+            int mask = mTableKeys.length - 1;
+            int i = offset & mask;
+            while (mTableKeys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            mTableKeys[i] = offset + 1;
+            mTableValues[i] = entry;
+        }
+
+        private int[] grow(int[] array, int length) {
+            mAllocatedBytes += 4L * length;
+            return array == null ? new int[length] : Arrays.copyOf(array, length);
+        }
+    }
+
+    private static void appendLabel(StringBuilder result, byte[] packet, int pos, int length) {
+        // labels are almost always ASCII, which needs no decoder or intermediate String
+        for (int i = pos; i < pos + length; i++) {
+            if (packet[i] < 0) {
+                result.append(new String(packet, pos, length));
+                return;
+            }
+        }
+        for (int i = pos; i < pos + length; i++) {
+            result.append((char) packet[i]);
+        }
+    }
+}
@@ -21,9 +21,6 @@
 
 package com.youview.tinydnssd;
 
-import android.os.Handler;
-import android.os.SystemClock;
-
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -36,6 +33,8 @@ import java.util.Map;
  * <li>Deletes (A -> null) are debounced such that (A -> null -> A) within a certain time interval
  * will never be deleted
  * </ul>
+ * <p>Timed removals run on a {@link Scheduler}. All state is guarded by a lock object, which
+ * listener callbacks are called with held.</p>
  */
 class MapDebouncer<Key, Value> {
 
@@ -49,30 +48,65 @@ class MapDebouncer<Key, Value> {
     private final Map<Key, Value> mBackingMap = new HashMap<>();
     private final Map<Key, Long> mRemovalSchedule = new HashMap<>();
 
+    private final Object mLock;
     private long mNextScheduledRemoval;
-    private Handler mHandler;
-
-    MapDebouncer(int debouncePeriodMillis, Listener<Key, Value> listener) {
+    private final Scheduler mScheduler;
+
+    /**
+     * @param scheduler runs timed removals
+     * @param lock guards the debouncer's state, or {@code null} to use the debouncer itself. Pass
+     *             the lock that callers of {@link #put(Object, Object)} already hold to avoid lock
+     *             ordering problems with the listener.
+     */
+    MapDebouncer(int debouncePeriodMillis, Listener<Key, Value> listener, Scheduler scheduler, Object lock) {
         if (debouncePeriodMillis < 0) {
             throw new IllegalArgumentException();
         }
-        if (listener == null) {
+        if (listener == null || scheduler == null) {
             throw new NullPointerException();
         }
         mDebouncePeriodMillis = debouncePeriodMillis;
         mListener = listener;
+        mScheduler = scheduler;
+        mLock = lock != null ? lock : this;
     }
 
     void put(Key key, Value newValue) {
-        if (mDebouncePeriodMillis == 0) {
-            mListener.put(key, newValue);
-            return;
+        synchronized (mLock) {
+            putLocked(key, newValue);
         }
+    }
 
-        // lazy init the handler to match the thread that calls put()
-        // also avoids creating a handler if there is no debounce period
-        if (mHandler == null) {
-            mHandler = new Handler();
+    /**
+     * Removes {@code key} after {@code delayMillis}, regardless of the debounce period, for
+     * removals that are known to be genuine such as mDNS goodbye packets. As with debounced
+     * removals, putting the same value again before the time elapses cancels the removal.
+     */
+    void remove(Key key, int delayMillis) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException();
+        }
+        synchronized (mLock) {
+            // keys that are not present, e.g. names only seen on the network, are ignored
+            if (mBackingMap.get(key) == null) {
+                return;
+            }
+            Long scheduled = mRemovalSchedule.get(key);
+            boolean sooner = scheduled == null || scheduled > mScheduler.uptimeMillis() + delayMillis;
+            if (sooner) {
+                timedRemoval(key, delayMillis);
+            }
+        }
+    }
+
+    private void putLocked(Key key, Value newValue) {
+        if (mDebouncePeriodMillis == 0) {
+            if (!mRemovalSchedule.isEmpty()) {
+                cancelTimedRemoval(key);
+            }
+            // the backing map only records presence here, for remove()
+            performUpdate(key, newValue);
+            return;
         }
 
         Value oldValue = mBackingMap.get(key);
@@ -82,7 +116,7 @@ class MapDebouncer<Key, Value> {
             }
         } else{
             if (newValue == null) {
-                timedRemoval(key);
+                timedRemoval(key, mDebouncePeriodMillis);
             } else if (oldValue.equals(newValue)) {
                 cancelTimedRemoval(key);
             } else {
@@ -94,7 +128,13 @@ class MapDebouncer<Key, Value> {
     private final Runnable mRemoveRunnable = new Runnable() {
         @Override
         public void run() {
-            long currentTime = SystemClock.uptimeMillis();
+            synchronized (mLock) {
+                runLocked();
+            }
+        }
+
+        private void runLocked() {
+            long currentTime = mScheduler.uptimeMillis();
             Iterator<Map.Entry<Key, Long>> it = mRemovalSchedule.entrySet().iterator();
             long nextScheduleTime = Long.MAX_VALUE;
             while (it.hasNext()) {
@@ -110,14 +150,18 @@ class MapDebouncer<Key, Value> {
             }
             mNextScheduledRemoval = 0;
             if (nextScheduleTime < Long.MAX_VALUE) {
-                mHandler.postAtTime(mRemoveRunnable, nextScheduleTime);
+                postAtTime(nextScheduleTime);
                 mNextScheduledRemoval = nextScheduleTime;
             }
         }
     };
 
     private void performUpdate(Key key, Value value) {
-        mBackingMap.put(key, value);
+        if (value != null) {
+            mBackingMap.put(key, value);
+        } else {
+            mBackingMap.remove(key);
+        }
         mListener.put(key, value);
     }
 
@@ -132,39 +176,43 @@ class MapDebouncer<Key, Value> {
                 }
             }
             if (scheduled != newSchedule) {
-                mHandler.removeCallbacks(mRemoveRunnable);
+                mScheduler.removeCallbacks(mRemoveRunnable);
                 if (newSchedule < Long.MAX_VALUE) {
-                    mHandler.postAtTime(mRemoveRunnable, newSchedule);
+                    postAtTime(newSchedule);
                 }
             }
         }
     }
 
-    private void timedRemoval(Key key) {
-        long removalTime = SystemClock.uptimeMillis() + mDebouncePeriodMillis;
+    private void timedRemoval(Key key, int delayMillis) {
+        long removalTime = mScheduler.uptimeMillis() + delayMillis;
 
         if (mNextScheduledRemoval == 0) {
             mNextScheduledRemoval = removalTime;
-            mHandler.postAtTime(mRemoveRunnable, removalTime);
+            postAtTime(removalTime);
         } else if (removalTime < mNextScheduledRemoval) {
-            mHandler.removeCallbacks(mRemoveRunnable);
+            mScheduler.removeCallbacks(mRemoveRunnable);
             mNextScheduledRemoval = removalTime;
-            mHandler.postAtTime(mRemoveRunnable, removalTime);
+            postAtTime(removalTime);
         }
         mRemovalSchedule.put(key, removalTime);
     }
 
+    private void postAtTime(long uptimeMillis) {
+        mScheduler.postDelayed(mRemoveRunnable, uptimeMillis - mScheduler.uptimeMillis());
+    }
+
     private void immediateUpdate(Key key, Value value) {
         cancelTimedRemoval(key);
         performUpdate(key, value);
     }
 
     void clear() {
-        mBackingMap.clear();
-        mRemovalSchedule.clear();
-        if (mHandler != null) {
-            mHandler.removeCallbacks(mRemoveRunnable);
+        synchronized (mLock) {
+            mBackingMap.clear();
+            mRemovalSchedule.clear();
+            mScheduler.removeCallbacks(mRemoveRunnable);
+            mNextScheduledRemoval = 0;
         }
-        mNextScheduledRemoval = 0;
     }
 }
@@ -0,0 +1,103 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Remembers names that failed to resolve, and when each may next be tried. The wait doubles
+ * with each consecutive failure, up to a maximum, so that a service that never answers costs
+ * fewer and fewer resolve attempts. A successful resolve forgets the name.</p>
+ *
+ * <p>At most a fixed number of names are remembered, evicting the least recently failed. Not
+ * thread-safe.</p>
+ */
+class NegativeCache {
+
+    private static final int DEFAULT_MAX_NAMES = 256;
+
+    private static class Backoff {
+        int failures;
+        long retryTime;
+    }
+
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final Map<String, Backoff> mBackoffs;
+
+    NegativeCache(long initialBackoffMillis, long maxBackoffMillis) {
+        this(initialBackoffMillis, maxBackoffMillis, DEFAULT_MAX_NAMES);
+    }
+
+    NegativeCache(long initialBackoffMillis, long maxBackoffMillis, final int maxNames) {
+        if (initialBackoffMillis <= 0 || maxBackoffMillis < initialBackoffMillis || maxNames <= 0) {
+            throw new IllegalArgumentException();
+        }
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        mBackoffs = new LinkedHashMap<String, Backoff>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Backoff> eldest) {
+                return size() > maxNames;
+            }
+        };
+    }
+
+    /**
+     * Records a failed resolve, doubling the time until the name may be tried again.
+     * @param now current time in milliseconds
+     * @return the time at which the name may be tried again
+     */
+    long onFailure(String name, long now) {
+        Backoff entry = mBackoffs.get(name);
+        if (entry == null) {
+            entry = new Backoff();
+            mBackoffs.put(name, entry);
+        }
+        long backoff = mInitialBackoffMillis;
+        for (int i = 0; i < entry.failures && backoff < mMaxBackoffMillis; i++) {
+            backoff *= 2;
+        }
+        entry.failures++;
+        entry.retryTime = now + Math.min(backoff, mMaxBackoffMillis);
+        return entry.retryTime;
+    }
+
+    /**
+     * @return the time at which {@code name} may be tried again, or {@link Long#MIN_VALUE} if it
+     *         has not failed
+     */
+    long getRetryTime(String name) {
+        Backoff entry = mBackoffs.get(name);
+        return entry != null ? entry.retryTime : Long.MIN_VALUE;
+    }
+
+    /** Forgets a name, e.g. after it resolved successfully. */
+    void remove(String name) {
+        mBackoffs.remove(name);
+    }
+
+    void clear() {
+        mBackoffs.clear();
+    }
+}
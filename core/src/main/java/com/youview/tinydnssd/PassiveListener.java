@@ -0,0 +1,217 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>Listens on the mDNS port for responses sent to the multicast group, whether or not they
+ * answer a query of ours. Devices announce themselves when they start up or change, and answer
+ * other hosts' queries by multicast, so a busy network delivers most records without asking.</p>
+ *
+ * <p>The socket is bound with {@code SO_REUSEADDR} so that it can share the port with other mDNS
+ * implementations on the same host. Packets are received on a background thread and passed to the
+ * listener there; undecodable packets are ignored.</p>
+ */
+class PassiveListener implements Closeable {
+
+    interface Listener {
+        /** @param records every record of a response packet, in packet order */
+        void onResponse(List<MDNSDiscover.Record> records);
+
+        /**
+         * @param names names asked about in a query, as returned by
+         *              {@link MDNSDiscover#decodeQuestions(byte[], int)}
+         */
+        void onQuestions(List<String> names);
+    }
+
+    private static final int MAX_PACKET_SIZE = 9000;
+    // wait after a failed receive, doubling while receives keep failing
+    private static final int ERROR_DELAY_MIN_MILLIS = 10, ERROR_DELAY_MAX_MILLIS = 5000;
+    // how long after sending a query its copy looped back by the host is expected
+    static final int LOOPBACK_WINDOW_MILLIS = 1000;
+
+    private final MulticastSocket mSocket;
+    private final InetSocketAddress mGroup;
+    private final Thread mThread;
+    private volatile boolean mClosed;
+    private final SentQueries mSentQueries = new SentQueries();
+
+    /**
+     * Opens the socket, joins the mDNS multicast group and starts receiving.
+     * @param listener receives the content of each packet
+     * @throws IOException if the port could not be bound or the group joined
+     */
+    PassiveListener(final Listener listener) throws IOException {
+        mGroup = new InetSocketAddress(InetAddress.getByName(MDNSDiscover.MULTICAST_GROUP_ADDRESS), MDNSDiscover.PORT);
+        mSocket = new MulticastSocket(null);
+        try {
+            mSocket.setReuseAddress(true);
+            mSocket.bind(new InetSocketAddress(MDNSDiscover.PORT));
+            // a null interface means the socket's default, as joinGroup(InetAddress) uses
+            mSocket.joinGroup(mGroup, null);
+            mSocket.setTimeToLive(255);
+        } catch (IOException e) {
+            mSocket.close();
+            throw e;
+        }
+        mThread = new Thread("tinydnssd-passive") {
+            @Override
+            public void run() {
+                byte[] buf = new byte[MAX_PACKET_SIZE];
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                int errorDelay = 0;
+                while (!mClosed) {
+                    packet.setLength(buf.length);
+                    try {
+                        mSocket.receive(packet);
+                        errorDelay = 0;
+                    } catch (IOException e) {
+                        if (mClosed || mSocket.isClosed()) {
+                            break;
+                        }
+                        // a failure that persists, e.g. while the network is down, would fail
+                        // every receive at once, so back off rather than spin
+                        errorDelay = Math.min(Math.max(errorDelay * 2, ERROR_DELAY_MIN_MILLIS), ERROR_DELAY_MAX_MILLIS);
+                        try {
+                            Thread.sleep(errorDelay);
+                        } catch (InterruptedException ie) {
+                            break;
+                        }
+                        continue;
+                    }
+                    try {
+                        // the QR bit in the first byte of the flags
+                        if ((buf[2] & (MDNSDiscover.FLAG_RESPONSE >> 8)) != 0) {
+                            listener.onResponse(MDNSDiscover.decodeRecords(buf, packet.getLength()));
+                        } else if (!mSentQueries.remove(buf, packet.getLength(), System.nanoTime() / 1000000)) {
+                            List<String> names = MDNSDiscover.decodeQuestions(buf, packet.getLength());
+                            if (!names.isEmpty()) {
+                                listener.onQuestions(names);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // malformed packet
+                    }
+                }
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Sends a query from the mDNS port. Responders multicast their answers to a query from this
+     * port (unless it asks for unicast responses), so the answers arrive at {@link Listener}
+     * and at every other host's cache too (RFC 6762 section 6.7).
+     */
+    void send(byte[] query) throws IOException {
+        // multicast loopback delivers the query to this socket too, where it must not be taken
+        // for another host's question
+        mSentQueries.add(query, System.nanoTime() / 1000000);
+        mSocket.send(new DatagramPacket(query, query.length, mGroup));
+    }
+
+    /**
+     * Leaves the multicast group and closes the socket. The listener is not called after this
+     * returns, except for a packet that was already being delivered.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mSocket.leaveGroup(mGroup, null);
+        } catch (IOException e) {
+            // closing anyway
+        }
+        mSocket.close();
+    }
+
+    /**
+     * Queries sent recently, to recognise them when they are received back.
+     */
+    static class SentQueries {
+        private static class Sent {
+            final byte[] query;
+            final long time;
+
+            Sent(byte[] query, long time) {
+                this.query = query;
+                this.time = time;
+            }
+        }
+
+        // in the order sent
+        private final Deque<Sent> mSent = new ArrayDeque<>();
+
+        synchronized void add(byte[] query, long now) {
+            expire(now);
+            mSent.addLast(new Sent(query, now));
+        }
+
+        /**
+         * @return {@code true} if the packet is a copy of a query sent in the last
+         *         {@link #LOOPBACK_WINDOW_MILLIS}, which is then forgotten
+         */
+        synchronized boolean remove(byte[] packet, int length, long now) {
+            expire(now);
+            for (Iterator<Sent> it = mSent.iterator(); it.hasNext(); ) {
+                if (equals(it.next().query, packet, length)) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void expire(long now) {
+            while (!mSent.isEmpty() && now - mSent.peekFirst().time > LOOPBACK_WINDOW_MILLIS) {
+                mSent.removeFirst();
+            }
+        }
+
+        private static boolean equals(byte[] query, byte[] packet, int length) {
+            if (query.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (query[i] != packet[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Saves resolved services to a compact binary file and loads them back, so that a restarted
+ * {@link DiscoveryEngine} can present services immediately instead of waiting for them to be
+ * discovered and resolved again.</p>
+ *
+ * <p>Each record is stored with an absolute expiry time (wall clock) computed from its TTL. On
+ * loading, expired records are dropped and the TTL of the remaining records is reduced to the time
+ * left, so the loaded data is never older than the responder allowed.</p>
+ *
+ * <p>File format, all integers big-endian:</p>
+ * <pre>
+ * int magic, short version, int count
+ * count * {
+ *     string serviceName, byte recordFlags
+ *     [A]   long expiry, string fqdn, 4 bytes IPv4 address
+ *     [SRV] long expiry, string fqdn, short priority, short weight, short port, string target
+ *     [TXT] long expiry, string fqdn, short length, length bytes rdata
+ * }
+ * </pre>
+ * <p>where a string is an unsigned short length followed by that many bytes of UTF-8.</p>
+ */
+class PersistentCache {
+
+    private static final int MAGIC = 0x54444e53;    // "TDNS"
+    private static final short VERSION = 1;
+
+    private static final int FLAG_A = 1, FLAG_SRV = 2, FLAG_TXT = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes the services to {@code file}, replacing its contents atomically. Each record is saved
+     * with the expiry given by its own receive time and TTL, so a record kept from an earlier
+     * response is not refreshed by a later one that only replaced another record.
+     * @param services the services to save. Records that were not received, i.e. with no receive
+     *                 time, are not saved, nor are services with no such records.
+     */
+    static void save(File file, Map<String, MDNSDiscover.Result> services) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        // the temporary file is removed unless it replaced the file, e.g. if a record cannot be
+        // written
+        boolean renamed = false;
+        try {
+            write(tmpFile, services);
+            renamed = tmpFile.renameTo(file);
+            if (!renamed) {
+                throw new IOException("could not replace " + file);
+            }
+        } finally {
+            if (!renamed) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private static void write(File file, Map<String, MDNSDiscover.Result> services) throws IOException {
+        int count = 0;
+        for (MDNSDiscover.Result result : services.values()) {
+            if (flags(result) != 0) count++;
+        }
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeShort(VERSION);
+            dos.writeInt(count);
+            for (Map.Entry<String, MDNSDiscover.Result> entry : services.entrySet()) {
+                MDNSDiscover.Result result = entry.getValue();
+                int flags = flags(result);
+                if (flags == 0) continue;
+                writeString(dos, entry.getKey());
+                dos.writeByte(flags);
+                if ((flags & FLAG_A) != 0) {
+                    writeRecordHeader(dos, result.a);
+                    Inet4Address address = result.a.getAddress();
+                    if (address == null) throw new IOException("not an IPv4 address: " + result.a.ipaddr);
+                    dos.write(address.getAddress());
+                }
+                if ((flags & FLAG_SRV) != 0) {
+                    writeRecordHeader(dos, result.srv);
+                    dos.writeShort(result.srv.priority);
+                    dos.writeShort(result.srv.weight);
+                    dos.writeShort(result.srv.port);
+                    writeString(dos, result.srv.target);
+                }
+                if ((flags & FLAG_TXT) != 0) {
+                    writeRecordHeader(dos, result.txt);
+                    dos.writeShort(result.txt.data.length);
+                    dos.write(result.txt.data);
+                }
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * @return the flags of the records of {@code result} that are saved
+     */
+    private static int flags(MDNSDiscover.Result result) {
+        return (isReceived(result.a) ? FLAG_A : 0)
+                | (isReceived(result.srv) ? FLAG_SRV : 0)
+                | (isReceived(result.txt) ? FLAG_TXT : 0);
+    }
+
+    private static boolean isReceived(MDNSDiscover.Record record) {
+        return record != null && record.receiveTime != 0;
+    }
+
+    /**
+     * Reads the services saved in {@code file}, memory-mapping it rather than copying it to the
+     * heap. Services with no unexpired records are omitted.
+     * @param now current wall clock time in milliseconds
+     * @return the services that are still valid, or an empty map if there is no file
+     * @throws IOException if the file exists but could not be read or is corrupt
+     */
+    static Map<String, MDNSDiscover.Result> load(File file, long now) throws IOException {
+        Map<String, MDNSDiscover.Result> services = new HashMap<>();
+        if (!file.exists()) {
+            return services;
+        }
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getShort() != VERSION) {
+                throw new IOException("not a cache file: " + file);
+            }
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                String name = readString(buf);
+                int flags = buf.get();
+                MDNSDiscover.Result result = new MDNSDiscover.Result();
+                if ((flags & FLAG_A) != 0) {
+                    MDNSDiscover.A a = new MDNSDiscover.A();
+                    boolean valid = readRecordHeader(buf, a, now);
+                    byte[] addr = new byte[4];
+                    buf.get(addr);
+                    a.setAddress(addr);
+                    if (valid) result.a = a;
+                }
+                if ((flags & FLAG_SRV) != 0) {
+                    MDNSDiscover.SRV srv = new MDNSDiscover.SRV();
+                    boolean valid = readRecordHeader(buf, srv, now);
+                    srv.priority = buf.getShort() & 0xFFFF;
+                    srv.weight = buf.getShort() & 0xFFFF;
+                    srv.port = buf.getShort() & 0xFFFF;
+                    srv.target = readString(buf);
+                    if (valid) result.srv = srv;
+                }
+                if ((flags & FLAG_TXT) != 0) {
+                    MDNSDiscover.TXT txt = new MDNSDiscover.TXT();
+                    boolean valid = readRecordHeader(buf, txt, now);
+                    txt.data = new byte[buf.getShort() & 0xFFFF];
+                    buf.get(txt.data);
+                    if (valid) result.txt = txt;
+                }
+                if (result.a != null || result.srv != null || result.txt != null) {
+                    services.put(name, result);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated cache file: " + file, e);
+        } finally {
+            fis.close();
+        }
+        return services;
+    }
+
+    private static void writeRecordHeader(DataOutputStream dos, MDNSDiscover.Record record) throws IOException {
+        dos.writeLong(record.receiveTime + record.ttl * 1000L);
+        writeString(dos, record.fqdn);
+    }
+
+    /**
+     * @return {@code true} if the record has not expired
+     */
+    private static boolean readRecordHeader(ByteBuffer buf, MDNSDiscover.Record record, long now) {
+        long expiry = buf.getLong();
+        record.fqdn = readString(buf);
+        // rounded up, since a TTL of 0 would make a record with under a second left a goodbye
+        record.ttl = (int) Math.max(0, (expiry - now + 999) / 1000);
+        // so that saving the record again keeps its expiry rather than rounding it up
+        record.receiveTime = expiry - record.ttl * 1000L;
+        return expiry > now;
+    }
+
+    private static void writeString(DataOutputStream dos, String str) throws IOException {
+        byte[] bytes = str != null ? str.getBytes(UTF_8) : new byte[0];
+        dos.writeShort(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,198 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>Encodes mDNS query packets into a reusable {@link ByteBuffer}. Instances are not thread-safe
+ * and are intended to be reused: call {@link #reset()}, then {@link #addQuestion(String, int, int)}
+ * for each question, then read the packet from {@link #buffer()}.</p>
+ *
+ * <p>Names are compressed (RFC 1035 section 4.1.4): any suffix of a name that has already been
+ * written in the same packet, by this or an earlier question, is replaced by a pointer.</p>
+ */
+class QueryEncoder {
+
+    /** Maximum mDNS packet size, see RFC 6762 section 17. */
+    static final int MAX_PACKET_SIZE = 9000;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int QDCOUNT_OFFSET = 4;
+    private static final int MAX_POINTER = 0x3fff;
+
+    private final ByteBuffer mBuffer;
+
+    // offsets of every uncompressed label written to the current packet, candidates for pointers
+    private int[] mLabelOffsets = new int[32];
+    private int mLabelCount;
+    private int mQuestionCount;
+
+    QueryEncoder() {
+        this(MAX_PACKET_SIZE);
+    }
+
+    QueryEncoder(int capacity) {
+        mBuffer = ByteBuffer.allocate(capacity);
+        reset();
+    }
+
+    /**
+     * Discards the current packet and starts a new one, containing only a header.
+     */
+    QueryEncoder reset() {
+        mBuffer.clear();
+        mBuffer.putInt(0);          // transaction ID, flags
+        mBuffer.putShort((short) 0);    // questions
+        mBuffer.putShort((short) 0);    // answers
+        mBuffer.putShort((short) 0);    // nscount
+        mBuffer.putShort((short) 0);    // arcount
+        mLabelCount = 0;
+        mQuestionCount = 0;
+        return this;
+    }
+
+    /**
+     * Appends a question to the packet.
+     * @param name the name to query, e.g. {@code "_example._tcp.local"}
+     * @param qtype the question type, e.g. {@link MDNSDiscover#QTYPE_PTR}
+     * @param qclass the question class including any flags, e.g.
+     *               {@code QCLASS_INTERNET | CLASS_FLAG_UNICAST}
+     * @throws java.nio.BufferOverflowException if the question does not fit in the packet
+     */
+    QueryEncoder addQuestion(String name, int qtype, int qclass) {
+        writeName(name);
+        mBuffer.putShort((short) qtype);
+        mBuffer.putShort((short) qclass);
+        mBuffer.putShort(QDCOUNT_OFFSET, (short) ++mQuestionCount);
+        return this;
+    }
+
+    /**
+     * @return the encoded packet, from position 0 up to the buffer's current position. The buffer
+     *         remains owned by this encoder and is overwritten by the next {@link #reset()}.
+     */
+    ByteBuffer buffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return a copy of the encoded packet
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer.array(), mBuffer.position());
+    }
+
+    private void writeName(String name) {
+        int firstNewLabel = mLabelCount;
+        // write every label uncompressed, then look for the longest suffix we can replace
+        int length = name.length();
+        int start = 0;
+        while (start < length) {
+            int end = name.indexOf('.', start);
+            if (end == -1) end = length;
+            if (end > start) {
+                addLabelOffset(mBuffer.position());
+                writeLabel(name, start, end);
+            }
+            start = end + 1;
+        }
+        mBuffer.put((byte) 0);
+        for (int i = firstNewLabel; i < mLabelCount; i++) {
+            int offset = mLabelOffsets[i];
+            for (int j = 0; j < firstNewLabel; j++) {
+                int candidate = mLabelOffsets[j];
+                if (candidate <= MAX_POINTER && suffixEquals(offset, candidate)) {
+                    mBuffer.position(offset);
+                    mBuffer.put((byte) (0xc0 | (candidate >> 8)));
+                    mBuffer.put((byte) candidate);
+                    mLabelCount = i;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void addLabelOffset(int offset) {
+        if (mLabelCount == mLabelOffsets.length) {
+            mLabelOffsets = Arrays.copyOf(mLabelOffsets, mLabelCount * 2);
+        }
+        mLabelOffsets[mLabelCount++] = offset;
+    }
+
+    /**
+     * Writes a single label, encoding the characters as UTF-8 without intermediate allocation.
+     */
+    private void writeLabel(String name, int start, int end) {
+        int lengthPos = mBuffer.position();
+        mBuffer.put((byte) 0);
+        for (int i = start; i < end; i++) {
+            char c = name.charAt(i);
+            if (c < 0x80) {
+                mBuffer.put((byte) c);
+            } else if (c < 0x800) {
+                mBuffer.put((byte) (0xc0 | (c >> 6)));
+                mBuffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(name.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, name.charAt(++i));
+                mBuffer.put((byte) (0xf0 | (cp >> 18)));
+                mBuffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                mBuffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                mBuffer.put((byte) (0x80 | (cp & 0x3f)));
+            } else {
+                mBuffer.put((byte) (0xe0 | (c >> 12)));
+                mBuffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                mBuffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        int labelLength = mBuffer.position() - lengthPos - 1;
+        if (labelLength > 63) {
+            throw new IllegalArgumentException("label longer than 63 bytes: " + name.substring(start, end));
+        }
+        mBuffer.put(lengthPos, (byte) labelLength);
+    }
+
+    /**
+     * Compares the names starting at two offsets in the packet, following compression pointers.
+     * Label comparison is case-insensitive for ASCII, as for DNS names in general.
+     */
+    private boolean suffixEquals(int a, int b) {
+        byte[] data = mBuffer.array();
+        while (true) {
+            while ((data[a] & 0xc0) == 0xc0) a = ((data[a] & 0x3f) << 8) | (data[a + 1] & 0xFF);
+            while ((data[b] & 0xc0) == 0xc0) b = ((data[b] & 0x3f) << 8) | (data[b + 1] & 0xFF);
+            int length = data[a] & 0xFF;
+            if (length != (data[b] & 0xFF)) return false;
+            if (length == 0) return true;
+            for (int i = 1; i <= length; i++) {
+                if (toLower(data[a + i]) != toLower(data[b + i])) return false;
+            }
+            a += length + 1;
+            b += length + 1;
+        }
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+}
@@ -0,0 +1,201 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>Records observed on the network, kept until their TTL expires, so that a service can often be
+ * resolved from traffic that has already been seen instead of sending a query.</p>
+ *
+ * <p>SRV and TXT records are stored by service name, and A records by host name. Names are
+ * compared case-insensitively. The cache holds at most a fixed number of names of each kind,
+ * evicting the least recently used. Thread-safe.</p>
+ */
+class RecordCache {
+
+    private static final int DEFAULT_MAX_NAMES = 1024;
+
+    private static class Entry<R extends MDNSDiscover.Record> {
+        final R record;
+        final long expiry;
+
+        Entry(R record, long expiry) {
+            this.record = record;
+            this.expiry = expiry;
+        }
+    }
+
+    private final LruMap<Entry<MDNSDiscover.SRV>> mSrv;
+    private final LruMap<Entry<MDNSDiscover.TXT>> mTxt;
+    private final LruMap<Entry<MDNSDiscover.A>> mA;
+    // time each name was last asked about in another host's multicast query
+    private final LruMap<Long> mQuestions;
+
+    private static class LruMap<V> extends LinkedHashMap<String, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int mMaxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            mMaxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > mMaxSize;
+        }
+    }
+
+    RecordCache() {
+        this(DEFAULT_MAX_NAMES);
+    }
+
+    RecordCache(int maxNames) {
+        mSrv = new LruMap<>(maxNames);
+        mTxt = new LruMap<>(maxNames);
+        mA = new LruMap<>(maxNames);
+        mQuestions = new LruMap<>(maxNames);
+    }
+
+    /**
+     * Stores the records of a received packet. Each record replaces any previous record of the
+     * same name and type; goodbye records remove it.
+     * @param now current time in milliseconds
+     */
+    synchronized void put(MDNSDiscover.Result packet, long now) {
+        put(mSrv, packet.srv, now);
+        put(mTxt, packet.txt, now);
+        put(mA, packet.a, now);
+        notifyAll();
+    }
+
+    /**
+     * Stores every record of a received packet, as {@link #put(MDNSDiscover.Result, long)} does,
+     * so that a packet announcing several services caches all of them.
+     * @param now current time in milliseconds
+     */
+    synchronized void put(List<MDNSDiscover.Record> records, long now) {
+        for (MDNSDiscover.Record record : records) {
+            if (record instanceof MDNSDiscover.SRV) {
+                put(mSrv, (MDNSDiscover.SRV) record, now);
+            } else if (record instanceof MDNSDiscover.TXT) {
+                put(mTxt, (MDNSDiscover.TXT) record, now);
+            } else if (record instanceof MDNSDiscover.A) {
+                put(mA, (MDNSDiscover.A) record, now);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until records are next put, or the timeout elapses.
+     * @param timeoutMillis the longest time to wait, greater than 0
+     */
+    synchronized void awaitPut(long timeoutMillis) throws InterruptedException {
+        wait(timeoutMillis);
+    }
+
+    /**
+     * Wakes all threads waiting in {@link #awaitPut(long)} without putting any records.
+     */
+    synchronized void wake() {
+        notifyAll();
+    }
+
+    private static <R extends MDNSDiscover.Record> void put(LruMap<Entry<R>> map, R record, long now) {
+        if (record == null || record.fqdn == null) {
+            return;
+        }
+        String key = record.fqdn.toLowerCase(Locale.US);
+        if (record.isGoodbye()) {
+            map.remove(key);
+        } else {
+            map.put(key, new Entry<>(record, now + record.ttl * 1000L));
+        }
+    }
+
+    /**
+     * @param serviceName name of the service, e.g. {@code "device-1234._example._tcp.local"}
+     * @param now current time in milliseconds
+     * @return the service's SRV, TXT and A records if all three are cached and unexpired,
+     *         otherwise {@code null}
+     */
+    synchronized MDNSDiscover.Result get(String serviceName, long now) {
+        String key = serviceName.toLowerCase(Locale.US);
+        MDNSDiscover.SRV srv = get(mSrv, key, now);
+        MDNSDiscover.TXT txt = get(mTxt, key, now);
+        if (srv == null || txt == null || srv.target == null) {
+            return null;
+        }
+        MDNSDiscover.A a = get(mA, srv.target.toLowerCase(Locale.US), now);
+        if (a == null) {
+            return null;
+        }
+        MDNSDiscover.Result result = new MDNSDiscover.Result();
+        result.srv = srv;
+        result.txt = txt;
+        result.a = a;
+        return result;
+    }
+
+    private static <R extends MDNSDiscover.Record> R get(LruMap<Entry<R>> map, String key, long now) {
+        Entry<R> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiry <= now) {
+            map.remove(key);
+            return null;
+        }
+        return entry.record;
+    }
+
+    /**
+     * Notes that another host has asked about a name, so the answers will shortly be multicast.
+     * @param now current time in milliseconds
+     */
+    synchronized void putQuestion(String name, long now) {
+        mQuestions.put(name.toLowerCase(Locale.US), now);
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return the time another host last asked about {@code name}, or {@code -1} if it has not been
+     *         asked about since {@code now - maxAge}
+     */
+    synchronized long getQuestionTime(String name, long now, long maxAge) {
+        Long time = mQuestions.get(name.toLowerCase(Locale.US));
+        return time != null && now - time < maxAge ? time : -1;
+    }
+
+    synchronized void clear() {
+        mQuestions.clear();
+        mSrv.clear();
+        mTxt.clear();
+        mA.clear();
+    }
+}
@@ -0,0 +1,125 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * <p>Queue of service names waiting to be resolved, ordered by priority. Names with equal priority
+ * are resolved in the order they were added.</p>
+ *
+ * <p>To prevent starvation, entries age: every {@code agingMillis} an entry spends in the queue
+ * counts as one extra level of priority. Since all entries age at the same rate, the ordering of
+ * two entries never changes while they are queued, and is computed once on insertion.</p>
+ *
+ * <p>Not thread-safe.</p>
+ */
+class ResolveQueue {
+
+    private static class Entry implements Comparable<Entry> {
+        final String name;
+        final long enqueueTime;
+        final long rank;    // lower is resolved sooner
+        final long sequence;
+
+        Entry(String name, long enqueueTime, long rank, long sequence) {
+            this.name = name;
+            this.enqueueTime = enqueueTime;
+            this.rank = rank;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (rank != other.rank) return rank < other.rank ? -1 : 1;
+            return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+        }
+    }
+
+    private final long mAgingMillis;
+    private final TreeSet<Entry> mQueue = new TreeSet<>();
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private long mSequence;
+
+    ResolveQueue(long agingMillis) {
+        if (agingMillis <= 0) throw new IllegalArgumentException();
+        mAgingMillis = agingMillis;
+    }
+
+    /**
+     * Adds a name, or changes the priority of a name that is already queued. A name keeps its
+     * original position in time when its priority changes.
+     * @param now current time in milliseconds
+     */
+    void put(String name, int priority, long now) {
+        Entry entry = mEntries.get(name);
+        long enqueueTime = now;
+        long sequence;
+        if (entry != null) {
+            mQueue.remove(entry);
+            enqueueTime = entry.enqueueTime;
+            sequence = entry.sequence;
+        } else {
+            sequence = mSequence++;
+        }
+        entry = new Entry(name, enqueueTime, enqueueTime - priority * mAgingMillis, sequence);
+        mEntries.put(name, entry);
+        mQueue.add(entry);
+    }
+
+    /**
+     * Changes the priority of {@code name} only if it is already queued.
+     */
+    void updatePriority(String name, int priority, long now) {
+        if (mEntries.containsKey(name)) {
+            put(name, priority, now);
+        }
+    }
+
+    /**
+     * @return the name to resolve next, removing it from the queue, or {@code null} if empty
+     */
+    String poll() {
+        Entry entry = mQueue.pollFirst();
+        if (entry == null) return null;
+        mEntries.remove(entry.name);
+        return entry.name;
+    }
+
+    void remove(String name) {
+        Entry entry = mEntries.remove(name);
+        if (entry != null) {
+            mQueue.remove(entry);
+        }
+    }
+
+    boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    void clear() {
+        mQueue.clear();
+        mEntries.clear();
+    }
+}
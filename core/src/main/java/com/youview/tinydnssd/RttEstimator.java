@@ -0,0 +1,147 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Tracks round trip times of queries to individual responders and derives timeouts from them,
+ * using the smoothed RTT and RTT variance estimators of TCP (RFC 6298).</p>
+ *
+ * <p>Each responder, identified by the name that was queried, has its own estimate. Responders
+ * with no history use a network-wide estimate that is fed by samples from all responders, so a
+ * first query still benefits from what is known about the network.</p>
+ */
+class RttEstimator {
+
+    static final int DEFAULT_INITIAL_TIMEOUT = 1000;
+    static final int DEFAULT_MIN_TIMEOUT = 200;
+    static final int DEFAULT_MAX_TIMEOUT = 4000;
+
+    private static final int MAX_RESPONDERS = 256;
+
+    private final int mInitialTimeout, mMinTimeout, mMaxTimeout;
+
+    private final Estimate mNetwork;
+
+    // least recently used responders are evicted first
+    private final LinkedHashMap<String, Estimate> mResponders = new LinkedHashMap<String, Estimate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Estimate> eldest) {
+            return size() > MAX_RESPONDERS;
+        }
+    };
+
+    private class Estimate {
+        /** Smoothed RTT and RTT variance in milliseconds, both 0 until the first sample. */
+        float srtt, rttvar;
+        int timeout = mInitialTimeout;
+        boolean sampled;
+
+        void addSample(int rtt) {
+            if (!sampled) {
+                srtt = rtt;
+                rttvar = rtt / 2f;
+                sampled = true;
+            } else {
+                rttvar = 0.75f * rttvar + 0.25f * Math.abs(srtt - rtt);
+                srtt = 0.875f * srtt + 0.125f * rtt;
+            }
+            timeout = clamp((int) (srtt + 4 * rttvar));
+        }
+
+        void backOff() {
+            timeout = clamp(timeout * 2);
+        }
+    }
+
+    RttEstimator() {
+        this(DEFAULT_INITIAL_TIMEOUT, DEFAULT_MIN_TIMEOUT, DEFAULT_MAX_TIMEOUT);
+    }
+
+    /**
+     * @param initialTimeout timeout to use before any RTT has been measured
+     * @param minTimeout lower bound of derived timeouts
+     * @param maxTimeout upper bound of derived timeouts
+     */
+    RttEstimator(int initialTimeout, int minTimeout, int maxTimeout) {
+        if (minTimeout <= 0 || minTimeout > initialTimeout || initialTimeout > maxTimeout) {
+            throw new IllegalArgumentException();
+        }
+        mInitialTimeout = initialTimeout;
+        mMinTimeout = minTimeout;
+        mMaxTimeout = maxTimeout;
+        mNetwork = new Estimate();
+    }
+
+    /**
+     * @return the timeout in milliseconds to use for the next query to {@code responder}
+     */
+    synchronized int getTimeout(String responder) {
+        Estimate estimate = mResponders.get(responder);
+        return estimate != null ? estimate.timeout : mNetwork.timeout;
+    }
+
+    /**
+     * Records the time taken for {@code responder} to answer a query.
+     * @param rtt round trip time in milliseconds
+     */
+    synchronized void addSample(String responder, int rtt) {
+        if (rtt < 0) throw new IllegalArgumentException();
+        Estimate estimate = mResponders.get(responder);
+        if (estimate == null) {
+            estimate = new Estimate();
+            mResponders.put(responder, estimate);
+        }
+        estimate.addSample(rtt);
+        mNetwork.addSample(rtt);
+    }
+
+    /**
+     * Records that a query to {@code responder} timed out, doubling its timeout up to the maximum.
+     * Only the responder's estimate is affected; one silent device does not slow down the others.
+     */
+    synchronized void onTimeout(String responder) {
+        Estimate estimate = mResponders.get(responder);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimate.timeout = mNetwork.timeout;
+            mResponders.put(responder, estimate);
+        }
+        estimate.backOff();
+    }
+
+    /**
+     * Discards all estimates, e.g. when the network changes.
+     */
+    synchronized void clear() {
+        mResponders.clear();
+        mNetwork.sampled = false;
+        mNetwork.srtt = mNetwork.rttvar = 0;
+        mNetwork.timeout = mInitialTimeout;
+    }
+
+    private int clamp(int timeout) {
+        return Math.max(mMinTimeout, Math.min(mMaxTimeout, timeout));
+    }
+}
@@ -0,0 +1,160 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Runs listener callbacks and timers for {@code DiscoverResolver} and the discovery engine
+ * behind it. The API mirrors the parts of Android's {@code Handler} that they use, so that delivery
+ * can be moved off the main thread, or run on a plain JVM.</p>
+ *
+ * <ul>
+ * <li>{@code HandlerScheduler}, in the Android library, runs everything on a {@code Looper}; this
+ * is the default
+ * <li>{@link #forExecutor(ScheduledExecutorService)} runs everything on an executor
+ * <li>{@link #direct()} runs posted tasks immediately on the calling thread, and delayed tasks on a
+ * shared timer thread
+ * </ul>
+ */
+public abstract class Scheduler {
+
+    /**
+     * Runs {@code r} as soon as possible.
+     */
+    public abstract void post(Runnable r);
+
+    /**
+     * Runs {@code r} after {@code delayMillis} has elapsed.
+     */
+    public abstract void postDelayed(Runnable r, long delayMillis);
+
+    /**
+     * Removes any pending runs of {@code r} that have not started yet.
+     */
+    public abstract void removeCallbacks(Runnable r);
+
+    /**
+     * @return a monotonic time in milliseconds, the time base for scheduling decisions
+     */
+    public long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * @return a scheduler that runs tasks on {@code executor}. With a multi-threaded executor,
+     *         callbacks may run concurrently.
+     */
+    public static Scheduler forExecutor(ScheduledExecutorService executor) {
+        if (executor == null) throw new NullPointerException("executor was null");
+        return new ExecutorScheduler(executor, false);
+    }
+
+    /**
+     * @return a scheduler that runs posted tasks immediately on the thread that posts them, with no
+     *         thread hop, and delayed tasks on a shared daemon thread. Callbacks can therefore run
+     *         on any thread and must be thread-safe. A posted task runs with any locks its poster
+     *         holds: a {@code DiscoverResolver} listener is called while the resolver is locked, so
+     *         it must return promptly, must not call back into the resolver, and must not wait for
+     *         other threads that use it.
+     */
+    public static Scheduler direct() {
+        return new ExecutorScheduler(TimerHolder.TIMER, true);
+    }
+
+    private static class TimerHolder {
+        static final ScheduledExecutorService TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tinydnssd-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    static class ExecutorScheduler extends Scheduler {
+        private final ScheduledExecutorService mExecutor;
+        private final boolean mDirect;
+        // runs not yet started, package-private for tests
+        final Map<Runnable, List<Future<?>>> mPending = new HashMap<>();
+
+        ExecutorScheduler(ScheduledExecutorService executor, boolean direct) {
+            mExecutor = executor;
+            mDirect = direct;
+        }
+
+        @Override
+        public void post(Runnable r) {
+            if (mDirect) {
+                r.run();
+            } else {
+                postDelayed(r, 0);
+            }
+        }
+
+        @Override
+        public synchronized void postDelayed(final Runnable r, long delayMillis) {
+            List<Future<?>> futures = mPending.get(r);
+            if (futures == null) {
+                futures = new ArrayList<>();
+                mPending.put(r, futures);
+            }
+            final Future<?>[] future = new Future<?>[1];
+            future[0] = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onRun(r, future);
+                    r.run();
+                }
+            }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+            futures.add(future[0]);
+        }
+
+        // forgets a run once it starts, so one-off runnables leave nothing behind; the future is
+        // read under the lock, which ensures postDelayed() has stored it
+        private synchronized void onRun(Runnable r, Future<?>[] future) {
+            List<Future<?>> futures = mPending.get(r);
+            if (futures != null && futures.remove(future[0]) && futures.isEmpty()) {
+                mPending.remove(r);
+            }
+        }
+
+        @Override
+        public synchronized void removeCallbacks(Runnable r) {
+            List<Future<?>> futures = mPending.remove(r);
+            if (futures != null) {
+                for (Future<?> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Resolved services by name, with secondary indexes by host name, IPv4 address and TXT
+ * attribute, so that large numbers of services can be queried without scanning them all.</p>
+ *
+ * <p>A TXT attribute key is indexed from the first time it is looked up, so changes only examine
+ * the keys that are actually queried and never decode whole TXT records. An unmodifiable snapshot
+ * of all services is built on demand, at most once per change.</p>
+ *
+ * <p>Thread-safe, and readers never block: the services and indexes are concurrent maps, and
+ * writers, which take a lock among themselves, make the version odd while they change them. A
+ * snapshot copied while the version stayed even is shared until the next change; during a change
+ * readers get the snapshot from before it.</p>
+ */
+class ServiceRegistry {
+
+    // returned by TXT.getIgnoreCase() for an absent attribute, compared by identity
+    private static final String ABSENT = new String("");
+
+    private final Map<String, MDNSDiscover.Result> mServices = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> mByHost = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> mByAddress = new ConcurrentHashMap<>();
+    // keyed by txtKey(), for the lower-case attribute keys in mTxtKeys
+    private final Map<String, Set<String>> mByTxt = new ConcurrentHashMap<>();
+    private final Set<String> mTxtKeys = newConcurrentSet();
+    // serializes writers, including the first lookup of a TXT key, which indexes it; package-private
+    // for tests
+    final ReentrantLock mWriteLock = new ReentrantLock();
+    // odd while a writer is changing the maps; only written with mWriteLock held
+    private volatile long mVersion;
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<>(
+            new Snapshot(0, Collections.<String, MDNSDiscover.Result>emptyMap()));
+
+    private static class Snapshot {
+        final long version;
+        final Map<String, MDNSDiscover.Result> services;
+
+        Snapshot(long version, Map<String, MDNSDiscover.Result> services) {
+            this.version = version;
+            this.services = services;
+        }
+    }
+
+    MDNSDiscover.Result get(String name) {
+        return mServices.get(name);
+    }
+
+    /**
+     * @return the service previously stored under {@code name}, or {@code null}
+     */
+    MDNSDiscover.Result put(String name, MDNSDiscover.Result result) {
+        beginWrite();
+        try {
+            MDNSDiscover.Result previous = mServices.put(name, result);
+            if (previous != null) index(name, previous, false);
+            index(name, result, true);
+            return previous;
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * @return the service that was removed, or {@code null} if there was none
+     */
+    MDNSDiscover.Result remove(String name) {
+        mWriteLock.lock();
+        try {
+            if (!mServices.containsKey(name)) {
+                return null;
+            }
+            beginWrite();
+            try {
+                MDNSDiscover.Result previous = mServices.remove(name);
+                index(name, previous, false);
+                return previous;
+            } finally {
+                endWrite();
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    void clear() {
+        beginWrite();
+        try {
+            mServices.clear();
+            mByHost.clear();
+            mByAddress.clear();
+            mByTxt.clear();
+        } finally {
+            endWrite();
+        }
+    }
+
+    private void beginWrite() {
+        mWriteLock.lock();
+        mVersion++;
+    }
+
+    private void endWrite() {
+        mVersion++;
+        mWriteLock.unlock();
+    }
+
+    /**
+     * @return an unmodifiable copy of all services, which is shared by callers until the next
+     *         change
+     */
+    Map<String, MDNSDiscover.Result> snapshot() {
+        Snapshot snapshot = mSnapshot.get();
+        long version = mVersion;
+        // during a change, the last complete state is the one before it
+        if (snapshot.version == (version & ~1L)) {
+            return snapshot.services;
+        }
+        Map<String, MDNSDiscover.Result> services = Collections.unmodifiableMap(new HashMap<>(mServices));
+        // only a copy made entirely between changes is shared; a copy that may hold part of a
+        // change is returned to this caller alone
+        if ((version & 1) == 0 && mVersion == version) {
+            mSnapshot.compareAndSet(snapshot, new Snapshot(version, services));
+        }
+        return services;
+    }
+
+    /** @return names of the services whose SRV record targets {@code host}, e.g. {@code "android-1234.local"} */
+    Set<String> getNamesByHost(String host) {
+        return copy(mByHost.get(host.toLowerCase(Locale.US)));
+    }
+
+    /** @return names of the services whose A record has the address {@code ipaddr} */
+    Set<String> getNamesByAddress(String ipaddr) {
+        return copy(mByAddress.get(ipaddr));
+    }
+
+    /**
+     * @param value the attribute's value, or {@code null} for a boolean attribute with no value
+     * @return names of the services whose TXT record has the attribute {@code key} set to
+     *         {@code value}. Keys are compared case-insensitively, values exactly.
+     */
+    Set<String> getNamesByTxt(String key, String value) {
+        key = key.toLowerCase(Locale.US);
+        if (!mTxtKeys.contains(key)) {
+            // indexing a key changes the indexes, so it is left to the next lookup rather than
+            // wait for a writer
+            if (!mWriteLock.tryLock()) {
+                return scanTxt(key, value);
+            }
+            try {
+                if (mTxtKeys.add(key)) {
+                    // first lookup of this key, so index the services already present
+                    for (Map.Entry<String, MDNSDiscover.Result> entry : mServices.entrySet()) {
+                        indexTxt(entry.getKey(), entry.getValue(), key, true);
+                    }
+                }
+            } finally {
+                mWriteLock.unlock();
+            }
+        }
+        return copy(mByTxt.get(txtKey(key, value)));
+    }
+
+    private Set<String> scanTxt(String key, String value) {
+        Set<String> names = new HashSet<>();
+        for (Map.Entry<String, MDNSDiscover.Result> entry : snapshot().entrySet()) {
+            MDNSDiscover.TXT txt = entry.getValue().txt;
+            String found = txt != null ? txt.getIgnoreCase(key, ABSENT) : ABSENT;
+            if (found != ABSENT && (value == null ? found == null : value.equals(found))) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    private void index(String name, MDNSDiscover.Result result, boolean add) {
+        if (result.srv != null && result.srv.target != null) {
+            update(mByHost, result.srv.target.toLowerCase(Locale.US), name, add);
+        }
+        if (result.a != null && result.a.ipaddr != null) {
+            update(mByAddress, result.a.ipaddr, name, add);
+        }
+        for (String key : mTxtKeys) {
+            indexTxt(name, result, key, add);
+        }
+    }
+
+    private void indexTxt(String name, MDNSDiscover.Result result, String key, boolean add) {
+        if (result.txt == null) {
+            return;
+        }
+        String value = result.txt.getIgnoreCase(key, ABSENT);
+        if (value != ABSENT) {
+            update(mByTxt, txtKey(key, value), name, add);
+        }
+    }
+
+    private static void update(Map<String, Set<String>> index, String key, String name, boolean add) {
+        Set<String> names = index.get(key);
+        if (add) {
+            if (names == null) {
+                names = newConcurrentSet();
+                index.put(key, names);
+            }
+            names.add(name);
+        } else if (names != null && names.remove(name) && names.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static Set<String> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    private static Set<String> copy(Set<String> names) {
+        return names != null ? new HashSet<>(names) : Collections.<String>emptySet();
+    }
+
+    private static String txtKey(String key, String value) {
+        // '=' cannot appear in a key, so this is unambiguous; a key without a value has no '='
+        return value == null ? key : key + '=' + value;
+    }
+}
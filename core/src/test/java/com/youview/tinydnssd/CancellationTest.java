@@ -0,0 +1,112 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class CancellationTest extends TestCase {
+
+    private static class CountingCloseable implements Closeable {
+        final AtomicInteger mCloses = new AtomicInteger();
+
+        @Override
+        public void close() {
+            mCloses.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testCancelClosesBlockerOnce() throws Exception {
+        Cancellation cancellation = new Cancellation();
+        CountingCloseable blocker = new CountingCloseable();
+        cancellation.setBlocker(blocker);
+        assertFalse(cancellation.isCancelled());
+        cancellation.cancel();
+        cancellation.cancel();
+        assertTrue(cancellation.isCancelled());
+        assertEquals(1, blocker.mCloses.get());
+    }
+
+    @Test
+    public void testClearedBlockerNotClosed() throws Exception {
+        Cancellation cancellation = new Cancellation();
+        CountingCloseable blocker = new CountingCloseable();
+        cancellation.setBlocker(blocker);
+        cancellation.clearBlocker();
+        cancellation.cancel();
+        assertEquals(0, blocker.mCloses.get());
+    }
+
+    @Test
+    public void testBlockerSetAfterCancelIsClosed() {
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+        CountingCloseable blocker = new CountingCloseable();
+        try {
+            cancellation.setBlocker(blocker);
+            fail();
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        assertEquals(1, blocker.mCloses.get());
+    }
+
+    @Test
+    public void testCancelUnblocksResolve() throws Exception {
+        final Cancellation cancellation = new Cancellation();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cancellation.cancel();
+            }
+        }.start();
+        long startTime = System.currentTimeMillis();
+        try {
+            MDNSDiscover.resolve("cancelled-device._example._tcp.local", 10000, cancellation);
+            fail();
+        } catch (InterruptedIOException e) {
+            assertFalse(e instanceof SocketTimeoutException);
+        } catch (IOException e) {
+            // no multicast route here, so the query could not be sent
+            return;
+        }
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+    }
+}
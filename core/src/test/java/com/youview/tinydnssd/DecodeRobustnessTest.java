@@ -0,0 +1,216 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Property tests over {@link MDNSDiscover#decode(byte[], int)} with generated and mutated packets,
+ * as a hostile device on the network could send. Decoding must fail only with
+ * {@link IOException}, and it must read each byte of a packet at most once while decoding names,
+ * however the packet's pointers are crafted.
+ */
+@RunWith(BlockJUnit4ClassRunner.class)
+public class DecodeRobustnessTest extends TestCase {
+
+    private static final int SEED = 0x2B7E1516;
+    private static final int MAX_PACKET_LENGTH = 9000;
+    // the reads of a name that fails to decode: its labels and pointers up to the limits, and
+    // the terminating zero
+    private static final int MAX_READS_OF_FAILED_NAME = MDNSDiscover.MAX_NAME_LENGTH / 2 + MDNSDiscover.MAX_POINTER_HOPS + 2;
+    // the worst-case packet's tables of remembered offsets, and its one name of 255 characters
+    private static final int MAX_WORST_CASE_ALLOCATION_PER_BYTE = 16;
+
+    /** Decodes, checking that only IOException is thrown and that any result is usable. */
+    private static void decodeChecked(MDNSDiscover.NameDecoder names) {
+        MDNSDiscover.Result result = new MDNSDiscover.Result();
+        try {
+            MDNSDiscover.decode(names, result);
+        } catch (IOException e) {
+            return;
+        }
+        if (result.txt != null) {
+            for (Map.Entry<String, String> entry : result.txt.dict.entrySet()) {
+                assertNotNull(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Generates a packet of random records, with names made of random labels and pointers to
+     * random offsets, and random counts in the header.
+     */
+    private static byte[] randomStructuredPacket(Random random) {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET_LENGTH);
+        buf.putShort((short) 0).putShort((short) 0x8400);
+        buf.putShort((short) random.nextInt(4));
+        buf.putShort((short) random.nextInt(65536));
+        buf.putShort((short) random.nextInt(4)).putShort((short) random.nextInt(4));
+        short[] types = { 0x0001, 0x000c, 0x0010, 0x0021, (short) random.nextInt(65536) };
+        while (buf.remaining() > 300) {
+            int labels = random.nextInt(6);
+            for (int i = 0; i < labels; i++) {
+                int length = 1 + random.nextInt(random.nextBoolean() ? 63 : 8);
+                buf.put((byte) length);
+                for (int j = 0; j < length; j++) {
+                    buf.put((byte) ('a' + random.nextInt(26)));
+                }
+            }
+            if (random.nextBoolean()) {
+                buf.putShort((short) (0xc000 | random.nextInt(buf.position() + 16)));
+            } else {
+                buf.put((byte) 0);
+            }
+            buf.putShort(types[random.nextInt(types.length)]);
+            buf.putShort((short) (random.nextBoolean() ? 0x8001 : 0x0001));
+            buf.putInt(random.nextInt(4) == 0 ? 0 : 120);
+            int rdlength = random.nextInt(8) == 0 ? random.nextInt(65536) : random.nextInt(64);
+            buf.putShort((short) rdlength);
+            for (int i = 0; i < Math.min(rdlength, 64); i++) {
+                buf.put((byte) random.nextInt(256));
+            }
+            if (random.nextInt(20) == 0) {
+                break;
+            }
+        }
+        byte[] packet = new byte[buf.position()];
+        buf.flip();
+        buf.get(packet);
+        return packet;
+    }
+
+    /**
+     * Builds the packet that costs the most to decode without failing: one name of maximum
+     * length where every label is reached through a pointer, and as many records as fit that
+     * each refer to it.
+     */
+    static byte[] worstCasePacket() {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET_LENGTH);
+        buf.position(12);
+        // the first record's data holds the labels, chained by pointers into a name that is
+        // 1 + 127 * 2 = 255 bytes once decoded and is reached through 126 pointers
+        buf.put((byte) 0).putShort((short) 0x00ff).putShort((short) 0x0001).putInt(120);
+        int rdlengthPosition = buf.position();
+        buf.putShort((short) 0);
+        int previous = buf.position();
+        buf.put((byte) 1).put((byte) 'a').put((byte) 0);
+        for (int i = 1; i < MDNSDiscover.MAX_POINTER_HOPS; i++) {
+            int label = buf.position();
+            buf.put((byte) 1).put((byte) 'a').putShort((short) (0xc000 | previous));
+            previous = label;
+        }
+        buf.putShort(rdlengthPosition, (short) (buf.position() - rdlengthPosition - 2));
+        int records = 1;
+        while (buf.remaining() >= 12) {
+            buf.putShort((short) (0xc000 | previous));
+            buf.putShort((short) 0x00ff).putShort((short) 0x0001);    // unknown type, INTERNET
+            buf.putInt(120).putShort((short) 0);
+            records++;
+        }
+        buf.putShort(0, (short) 0).putShort(2, (short) 0x8400).putShort(4, (short) 0);
+        buf.putShort(6, (short) records).putShort(8, (short) 0).putShort(10, (short) 0);
+        byte[] packet = new byte[buf.position()];
+        buf.flip();
+        buf.get(packet);
+        return packet;
+    }
+
+    /** Decodes a packet, checking that its names read no byte more than once. */
+    private static void decodeBounded(byte[] packet) {
+        MDNSDiscover.NameDecoder names = new MDNSDiscover.NameDecoder(packet, packet.length);
+        decodeChecked(names);
+        assertTrue("read " + names.reads() + " name bytes of a " + packet.length + " byte packet",
+                names.reads() <= packet.length + MAX_READS_OF_FAILED_NAME);
+    }
+
+    @Test
+    public void testStructuredPackets() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < 2000; i++) {
+            decodeBounded(randomStructuredPacket(random));
+        }
+    }
+
+    @Test
+    public void testMutatedPackets() {
+        Random random = new Random(SEED);
+        byte[] original = worstCasePacket();
+        byte[] valid = randomStructuredPacket(random);
+        for (int i = 0; i < 2000; i++) {
+            byte[] packet = (i % 2 == 0 ? original : valid).clone();
+            int mutations = 1 + random.nextInt(8);
+            for (int j = 0; j < mutations; j++) {
+                packet[random.nextInt(packet.length)] = (byte) random.nextInt(256);
+            }
+            decodeBounded(packet);
+        }
+    }
+
+    @Test
+    public void testForgedRecordLengths() {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET_LENGTH);
+        buf.putShort((short) 0).putShort((short) 0x8400).putShort((short) 0).putShort((short) 0xffff);
+        buf.putShort((short) 0).putShort((short) 0);
+        while (buf.remaining() >= 11) {
+            buf.put((byte) 0).putShort((short) 0x0010).putShort((short) 0x0001).putInt(120).putShort((short) 0xffff);
+        }
+        decodeBounded(buf.array());
+    }
+
+    @Test
+    public void testWorstCasePacket() throws IOException {
+        byte[] packet = worstCasePacket();
+        // decodes successfully, despite the cost
+        MDNSDiscover.decode(packet, packet.length);
+        decodeBounded(packet);
+    }
+
+    /**
+     * Each of the seven hundred records of the worst-case packet names the same 255 byte name
+     * of 127 labels. A decoder that followed the pointers again for every record would read
+     * some twenty times as many bytes as the packet holds, and one that built every name anew
+     * would allocate some forty bytes per byte of the packet for the names alone. Both costs are
+     * counted by the decoder rather than timed or sampled, so the bounds hold on any machine.
+     */
+    @Test
+    public void testWorstCaseCost() throws IOException {
+        byte[] packet = worstCasePacket();
+        MDNSDiscover.NameDecoder names = new MDNSDiscover.NameDecoder(packet, packet.length);
+        MDNSDiscover.Result result = new MDNSDiscover.Result();
+        MDNSDiscover.decode(names, result);
+        assertTrue("read " + names.reads() + " name bytes of a " + packet.length + " byte packet",
+                names.reads() <= packet.length);
+        assertTrue("allocated " + names.allocatedBytes() + " bytes for a " + packet.length + " byte packet",
+                names.allocatedBytes() <= MAX_WORST_CASE_ALLOCATION_PER_BYTE * packet.length);
+    }
+}
@@ -0,0 +1,251 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2015 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the discovery engine on plain JVM threads, with the resolve and the browser stubbed.
+ */
+@RunWith(BlockJUnit4ClassRunner.class)
+public class DiscoveryEngineTest extends TestCase {
+
+    private static final String NAME = "device._example._tcp.local";
+    // how much faster than real time the engine's scheduler runs, so that retries come quickly
+    private static final int SPEEDUP = 100;
+
+    private ScheduledExecutorService mSchedulerExecutor;
+    private ExecutorService mExecutor;
+    private TestEngine mEngine;
+
+    private class TestEngine extends DiscoveryEngine {
+        final BlockingQueue<Map<String, MDNSDiscover.Result>> mChanges = new LinkedBlockingQueue<>();
+        // what resolve() answers for each service, a missing service times out
+        final Map<String, MDNSDiscover.Result> mResults = new ConcurrentHashMap<>();
+        final AtomicInteger mResolves = new AtomicInteger();
+        volatile String mRejectedValue;
+        // set if the filter is called with no TXT record or with the engine locked
+        volatile boolean mBadAccept;
+
+        TestEngine() {
+            super(0, new FastScheduler(Scheduler.forExecutor(mSchedulerExecutor)), mExecutor);
+        }
+
+        @Override
+        void onServicesChanged(Map<String, MDNSDiscover.Result> services) {
+            mChanges.add(services);
+        }
+
+        @Override
+        boolean accept(String serviceName, MDNSDiscover.TXT txt) {
+            if (txt == null || Thread.holdsLock(this)) {
+                mBadAccept = true;
+                return true;
+            }
+            return mRejectedValue == null || !mRejectedValue.equals(txt.get("model"));
+        }
+
+        @Override
+        boolean hasFilter() {
+            return mRejectedValue != null;
+        }
+
+        @Override
+        MDNSDiscover.Result resolve(String serviceName, int timeout, Cancellation cancellation) throws IOException {
+            mResolves.incrementAndGet();
+            MDNSDiscover.Result result = mResults.get(serviceName);
+            if (result == null) {
+                throw new SocketTimeoutException();
+            }
+            return result;
+        }
+
+        Map<String, MDNSDiscover.Result> awaitChange() throws InterruptedException {
+            Map<String, MDNSDiscover.Result> services = mChanges.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no change delivered", services);
+            return services;
+        }
+    }
+
+    /**
+     * Runs tasks on another scheduler, with its clock sped up and delays shortened to match.
+     */
+    private static class FastScheduler extends Scheduler {
+        private final Scheduler mScheduler;
+
+        FastScheduler(Scheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        @Override
+        public void post(Runnable r) {
+            mScheduler.post(r);
+        }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMillis) {
+            mScheduler.postDelayed(r, delayMillis / SPEEDUP);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            mScheduler.removeCallbacks(r);
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return mScheduler.uptimeMillis() * SPEEDUP;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mSchedulerExecutor = Executors.newSingleThreadScheduledExecutor();
+        mExecutor = Executors.newCachedThreadPool();
+        mEngine = new TestEngine();
+    }
+
+    @After
+    public void tearDown() {
+        if (mEngine.isStarted()) {
+            mEngine.stop();
+        }
+        assertFalse("filter called without a TXT record or with the engine locked", mEngine.mBadAccept);
+        mSchedulerExecutor.shutdownNow();
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testFoundServiceResolvedAndReported() throws InterruptedException {
+        MDNSDiscover.Result result = result(NAME, "192.168.1.100", null);
+        mEngine.mResults.put(NAME, result);
+        mEngine.start();
+        mEngine.onServiceFound(NAME);
+        Map<String, MDNSDiscover.Result> services = mEngine.awaitChange();
+        assertSame(result, services.get(NAME));
+        assertSame(services, mEngine.getServices());
+        assertSame(result, mEngine.getServicesByAddress("192.168.1.100").get(NAME));
+    }
+
+    @Test
+    public void testLostServiceRemoved() throws InterruptedException {
+        mEngine.mResults.put(NAME, result(NAME, "192.168.1.100", null));
+        mEngine.start();
+        mEngine.onServiceFound(NAME);
+        assertEquals(1, mEngine.awaitChange().size());
+        mEngine.onServiceLost(NAME);
+        assertTrue(mEngine.awaitChange().isEmpty());
+    }
+
+    @Test
+    public void testRejectedServiceNotReported() throws InterruptedException {
+        String other = "other._example._tcp.local";
+        mEngine.mRejectedValue = "X";
+        mEngine.mResults.put(NAME, result(NAME, "192.168.1.100", "X"));
+        mEngine.mResults.put(other, result(other, "192.168.1.101", "Y"));
+        mEngine.start();
+        mEngine.onServiceFound(NAME);
+        mEngine.onServiceFound(other);
+        Map<String, MDNSDiscover.Result> services = mEngine.awaitChange();
+        assertEquals(1, services.size());
+        assertTrue(services.containsKey(other));
+    }
+
+    @Test
+    public void testResolveWithoutTxtRetriedBeforeFiltering() throws InterruptedException {
+        mEngine.mRejectedValue = "X";
+        mEngine.mResults.put(NAME, result(NAME, "192.168.1.100", null));
+        mEngine.start();
+        mEngine.onServiceFound(NAME);
+        // not reported, nor rejected, until a resolve brings the TXT record
+        assertNull(mEngine.mChanges.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(mEngine.mResolves.get() >= 2);
+        MDNSDiscover.Result result = result(NAME, "192.168.1.100", "Y");
+        mEngine.mResults.put(NAME, result);
+        assertSame(result, mEngine.awaitChange().get(NAME));
+    }
+
+    @Test
+    public void testTxtAnnouncementFiltered() throws InterruptedException {
+        mEngine.mRejectedValue = "X";
+        mEngine.mResults.put(NAME, result(NAME, "192.168.1.100", "Y"));
+        mEngine.start();
+        mEngine.onServiceFound(NAME);
+        assertEquals(1, mEngine.awaitChange().size());
+        MDNSDiscover.TXT txt = result(NAME, "192.168.1.100", "X").txt;
+        txt.cacheFlush = true;
+        mEngine.onRecordsReceived(Collections.<MDNSDiscover.Record>singletonList(txt));
+        assertTrue(mEngine.awaitChange().isEmpty());
+    }
+
+    @Test
+    public void testStopDeliversNothingMore() throws InterruptedException {
+        mEngine.start();
+        mEngine.onServiceFound(NAME);
+        mEngine.stop();
+        mEngine.mResults.put(NAME, result(NAME, "192.168.1.100", null));
+        mEngine.onServiceFound(NAME);
+        assertNull(mEngine.mChanges.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(mEngine.getServices().isEmpty());
+    }
+
+    static MDNSDiscover.Result result(String serviceName, String ipaddr, String model) {
+        MDNSDiscover.Result result = new MDNSDiscover.Result();
+        result.srv = new MDNSDiscover.SRV();
+        result.srv.fqdn = serviceName;
+        result.srv.target = "host-" + ipaddr + ".local";
+        result.srv.port = 8080;
+        result.srv.ttl = 120;
+        result.a = new MDNSDiscover.A();
+        result.a.fqdn = result.srv.target;
+        result.a.ipaddr = ipaddr;
+        result.a.ttl = 120;
+        if (model != null) {
+            result.txt = new MDNSDiscover.TXT();
+            result.txt.fqdn = serviceName;
+            result.txt.ttl = 4500;
+            result.txt.dict.put("model", model);
+        }
+        return result;
+    }
+}
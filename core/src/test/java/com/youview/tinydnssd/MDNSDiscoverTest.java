@@ -0,0 +1,725 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2015 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static com.youview.tinydnssd.MDNSDiscover.*;
+import static org.junit.Assert.*;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class MDNSDiscoverTest extends TestCase {
+    class ByteBuilder {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+        ByteBuilder ascii(String str) {
+            try {
+                bos.write(str.getBytes());
+            } catch (IOException e) {
+                throw new Error(e);
+            }
+            return this;
+        }
+
+        ByteBuilder hex(String hex) {
+            // hex digits must come in pairs, pairs optionally separated by spaces
+            if (!hex.matches("( *[0-9a-f]{2})* *")) {
+                throw new IllegalArgumentException();
+            }
+            for (int i = 0, l = hex.length(); i < l; i++) {
+                if (hex.charAt(i) != ' ') {
+                    String x = hex.substring(i, i + 2);
+                    bos.write(Integer.valueOf(x, 16));
+                    i++;
+                }
+            }
+            return this;
+        }
+
+        byte[] build() {
+            return bos.toByteArray();
+        }
+    }
+
+    @Test
+    public void testDiscoverPacket() throws IOException {
+        byte[] actual = queryPacket("_example._tcp.local", QCLASS_INTERNET | CLASS_FLAG_UNICAST, QTYPE_PTR);
+        byte[] expected = new ByteBuilder()
+                .hex("00 00 00 00 00 01 00 00 00 00 00 00")
+                .hex("08").ascii("_example")
+                .hex("04").ascii("_tcp")
+                .hex("05").ascii("local")
+                .hex("00 00 0c 80 01")
+                .build();
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testMultiTypeDiscoverPacket() {
+        byte[] actual = discoverPacket("_example._tcp.local", "_other._udp.local");
+        byte[] expected = new ByteBuilder()
+                .hex("00 00 00 00 00 02 00 00 00 00 00 00")
+                .hex("08").ascii("_example")
+                .hex("04").ascii("_tcp")
+                .hex("05").ascii("local")
+                .hex("00 00 0c 80 01")
+                .hex("06").ascii("_other")
+                .hex("04").ascii("_udp")
+                .hex("c0 1a")   // pointer to "local"
+                .hex("00 0c 80 01")
+                .build();
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testSubtypeDiscoverPacket() {
+        assertEquals("_printer._sub._http._tcp.local", subtypeName("_printer", "_http._tcp.local"));
+        byte[] actual = discoverPacket(subtypeName("_printer", "_http._tcp.local"));
+        byte[] expected = new ByteBuilder()
+                .hex("0000 0000")
+                .hex("0001") // 1 question
+                .hex("0000 0000 0000")
+                .hex("08").ascii("_printer")
+                .hex("04").ascii("_sub")
+                .hex("05").ascii("_http")
+                .hex("04").ascii("_tcp")
+                .hex("05").ascii("local")
+                .hex("00")
+                .hex("00 0c 80 01")
+                .build();
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testResolvePacket() throws IOException {
+        byte[] actual = queryPacket("device-1234._example._tcp.local", QCLASS_INTERNET | CLASS_FLAG_UNICAST, QTYPE_TXT, QTYPE_SRV);
+        byte[] expected = new ByteBuilder()
+                .hex("00 00 00 00 00 02 00 00 00 00 00 00")
+                .hex("0b").ascii("device-1234")
+                .hex("08").ascii("_example")
+                .hex("04").ascii("_tcp")
+                .hex("05").ascii("local")
+                .hex("00 00 10 80 01 c0 0c 00 21 80 01")
+                .build();
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testQueryPacketIsCached() {
+        byte[] first = queryPacket("_example._tcp.local", QCLASS_INTERNET | CLASS_FLAG_UNICAST, QTYPE_PTR);
+        byte[] second = queryPacket("_example._tcp.local", QCLASS_INTERNET | CLASS_FLAG_UNICAST, QTYPE_PTR);
+        byte[] other = queryPacket("_example._tcp.local", QCLASS_INTERNET, QTYPE_PTR);
+        assertSame(first, second);
+        assertFalse(first == other);
+    }
+
+    @Test
+    public void testDecodeQuestions() throws IOException {
+        byte[] qm = queryPacket("device-1234._example._tcp.local", QCLASS_INTERNET, QTYPE_SRV, QTYPE_TXT);
+        assertEquals(Arrays.asList("device-1234._example._tcp.local", "device-1234._example._tcp.local"),
+                decodeQuestions(qm, qm.length));
+        // answers to QU questions are unicast to the asker, so they do not count
+        byte[] qu = queryPacket("device-1234._example._tcp.local", QCLASS_INTERNET | CLASS_FLAG_UNICAST, QTYPE_SRV);
+        assertTrue(decodeQuestions(qu, qu.length).isEmpty());
+        byte[] reply = createReplyPacket();
+        assertTrue(decodeQuestions(reply, reply.length).isEmpty());
+    }
+
+    @Test
+    public void testMultiNameCompression() {
+        byte[] actual = new QueryEncoder()
+                .addQuestion("_example._tcp.local", QTYPE_PTR, QCLASS_INTERNET)
+                .addQuestion("_other._tcp.LOCAL", QTYPE_PTR, QCLASS_INTERNET)
+                .addQuestion("_example._tcp.local", QTYPE_PTR, QCLASS_INTERNET)
+                .toByteArray();
+        byte[] expected = new ByteBuilder()
+                .hex("00 00 00 00 00 03 00 00 00 00 00 00")
+                .hex("08").ascii("_example")
+                .hex("04").ascii("_tcp")
+                .hex("05").ascii("local")
+                .hex("00 00 0c 00 01")
+                .hex("06").ascii("_other")
+                .hex("c0 15")   // pointer to "_tcp.local"
+                .hex("00 0c 00 01")
+                .hex("c0 0c")   // pointer to "_example._tcp.local"
+                .hex("00 0c 00 01")
+                .build();
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testQueryEncoderUTF8Label() {
+        byte[] actual = new QueryEncoder()
+                .addQuestion("caf\u00e9.local", QTYPE_TXT, QCLASS_INTERNET)
+                .toByteArray();
+        byte[] expected = new ByteBuilder()
+                .hex("00 00 00 00 00 01 00 00 00 00 00 00")
+                .hex("05").ascii("caf").hex("c3 a9")
+                .hex("05").ascii("local")
+                .hex("00 00 10 00 01")
+                .build();
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testReplyPacket() throws IOException {
+        byte[] packet = createReplyPacket();
+        Result r = decode(packet, packet.length);
+
+        // check A record
+        assertEquals("192.168.1.100", r.a.ipaddr);
+        assertEquals("dev0123456789.local", r.a.fqdn);
+        assertEquals(10, r.a.ttl);
+
+        // check SRV record
+        assertEquals(0, r.srv.priority);
+        assertEquals(0, r.srv.weight);
+        assertEquals(1234, r.srv.port);
+        assertEquals("dev0123456789.local", r.srv.target);
+        assertEquals("device-1234._example._tcp.local", r.srv.fqdn);
+        assertEquals(10, r.srv.ttl);
+
+        // check TXT record
+        Map<String, String> expectedTxt = new HashMap<>();
+        expectedTxt.put("foo", "bar");
+        expectedTxt.put("bar", null);
+        expectedTxt.put("txtvers", "1");
+        assertEquals(expectedTxt, r.txt.dict);
+        assertEquals("device-1234._example._tcp.local", r.txt.fqdn);
+        assertEquals(10, r.txt.ttl);
+    }
+
+    @Test
+    public void testTypedAddress() throws IOException {
+        byte[] packet = createReplyPacket();
+        Result r = decode(packet, packet.length);
+        assertArrayEquals(new byte[] { (byte) 192, (byte) 168, 1, 100 }, r.a.getAddress().getAddress());
+        assertEquals(new InetSocketAddress(r.a.getAddress(), 1234), r.getSocketAddress());
+
+        // the address follows ipaddr if it is assigned
+        r.a.ipaddr = "10.0.0.1";
+        assertArrayEquals(new byte[] { 10, 0, 0, 1 }, r.a.getAddress().getAddress());
+        r.a.ipaddr = "10.0.0.256";
+        assertNull(r.a.getAddress());
+        assertNull(r.getSocketAddress());
+    }
+
+    @Test
+    public void testResolveAllInterrupted() throws IOException {
+        Thread.currentThread().interrupt();
+        try {
+            resolveAll(Collections.singleton("device-1234._example._tcp.local"), 60000, 1);
+            fail("interrupted resolveAll() returned");
+        } catch (InterruptedIOException e) {
+            // expected, rather than a result once the service times out
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void testResolveAllAddAnswers() throws IOException {
+        Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        names.add("DEVICE-1234._example._tcp.local");
+        names.add("device-5678._example._tcp.local");
+        Map<String, Result> results = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Map<String, A> addresses = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        byte[] packet = createReplyPacket();
+        Result update = decode(packet, packet.length);
+        List<MDNSDiscover.Record> records = new ArrayList<>(decodeRecords(packet, packet.length));
+        // a second service answered in the same packet is kept too
+        SRV other = new SRV();
+        other.fqdn = "device-5678._example._tcp.local";
+        other.ttl = 120;
+        other.port = 5678;
+        records.add(other);
+        addAnswers(names, results, addresses, records);
+        Result r = results.get("device-1234._example._tcp.local");
+        assertEquals(update.srv.port, r.srv.port);
+        assertEquals(update.txt.dict, r.txt.dict);
+        assertEquals(update.a.ipaddr, addresses.get("dev0123456789.local").ipaddr);
+        assertSame(other, results.get("device-5678._example._tcp.local").srv);
+
+        // answers for names that were not asked about are ignored
+        names.clear();
+        results.clear();
+        addAnswers(names, results, addresses, records);
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void testParseIPv4() {
+        assertArrayEquals(new byte[] { 0, 0, 0, 0 }, parseIPv4("0.0.0.0"));
+        assertArrayEquals(new byte[] { (byte) 255, 1, 2, 3 }, parseIPv4("255.1.2.3"));
+        assertNull(parseIPv4("1.2.3"));
+        assertNull(parseIPv4("1.2.3.4.5"));
+        assertNull(parseIPv4("1..3.4"));
+        assertNull(parseIPv4("1.2.3.4."));
+        assertNull(parseIPv4("a.b.c.d"));
+    }
+
+    @Test
+    public void testGoodbyeRecord() throws IOException {
+        byte[] packet = new ByteBuilder()
+                .hex("0000 8400")
+                .hex("0000") // 0 questions
+                .hex("0001") // 1 answer
+                .hex("0000") // 0 authority RRs
+                .hex("0000") // 0 additional RRs
+
+                // 1st answer
+                .hex("04").ascii("TEST")
+                .hex("00")
+                .hex("0001 0001")   // type=A, aclass=INTERNET
+                .hex("00000000 0004")   // ttl=0, length=4
+                .hex("c0 a8 01 64")    // 192.168.1.100
+                .build();
+        Result r = decode(packet, packet.length);
+        assertTrue(r.a.isGoodbye());
+        packet = createReplyPacket();
+        assertFalse(decode(packet, packet.length).a.isGoodbye());
+    }
+
+    @Test
+    public void testTXTLookup() throws IOException {
+        byte[] packet = createReplyPacket();
+        Result r = decode(packet, packet.length);
+        assertEquals("bar", r.txt.get("foo"));
+        assertArrayEquals("bar".getBytes(), r.txt.getBytes("foo"));
+        assertTrue(r.txt.containsKey("bar"));
+        assertNull(r.txt.get("bar"));
+        assertNull(r.txt.getBytes("bar"));
+        assertFalse(r.txt.containsKey("missing"));
+        assertFalse(r.txt.containsKey("fo"));
+        assertEquals("1", r.txt.dict.get("txtvers"));
+    }
+
+    @Test
+    public void testTXTDictWritesThrough() {
+        TXT txt = new TXT();
+        assertNull(txt.dict.put("foo", "bar"));
+        txt.dict.put("flag", null);
+        assertEquals("bar", txt.dict.put("foo", "baz"));
+        assertEquals("baz", txt.get("foo"));
+        assertTrue(txt.containsKey("flag"));
+        assertNull(txt.get("flag"));
+        assertArrayEquals(new byte[] { 4, 'f', 'l', 'a', 'g', 7, 'f', 'o', 'o', '=', 'b', 'a', 'z' }, txt.data);
+        assertEquals(2, txt.dict.size());
+        assertEquals("baz", txt.dict.remove("foo"));
+        assertFalse(txt.containsKey("foo"));
+        assertEquals(1, txt.dict.size());
+        txt.dict.clear();
+        assertTrue(txt.dict.isEmpty());
+        try {
+            txt.dict.put("a=b", "c");
+            fail("key containing '=' accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTXTDecodesUTF8() throws IOException {
+        byte[] packet = new ByteBuilder()
+                .hex("0000 8400")
+                .hex("0000") // 0 questions
+                .hex("0001") // 1 answer
+                .hex("0000") // 0 authority RRs
+                .hex("0000") // 0 additional RRs
+
+                // 1st answer
+                .hex("04").ascii("TEST")
+                .hex("00")
+                .hex("0010 0001")   // type=TXT, aclass=INTERNET
+                .hex("0000000a 000b")   // ttl=10, length=0x0b
+                .hex("06").ascii("fn=").hex("c3 a9 00")  // "fn=\u00e9\u0000"
+                .hex("00")  // empty segment is ignored
+                .hex("02").ascii("k=")    // empty value
+                .build();
+        Result r = decode(packet, packet.length);
+        assertEquals("\u00e9\u0000", r.txt.get("fn"));
+        assertArrayEquals(new byte[] { (byte) 0xc3, (byte) 0xa9, 0 }, r.txt.getBytes("fn"));
+        assertEquals("", r.txt.get("k"));
+        Map<String, String> expectedTxt = new HashMap<>();
+        expectedTxt.put("fn", "\u00e9\u0000");
+        expectedTxt.put("k", "");
+        assertEquals(expectedTxt, r.txt.dict);
+    }
+
+    @Test(expected=EOFException.class)
+    public void testAbortOnTXTSegmentOverrun() throws IOException {
+        byte[] packet = new ByteBuilder()
+                .hex("0000 8400")
+                .hex("0000") // 0 questions
+                .hex("0001") // 1 answer
+                .hex("0000") // 0 authority RRs
+                .hex("0000") // 0 additional RRs
+
+                // 1st answer
+                .hex("04").ascii("TEST")
+                .hex("00")
+                .hex("0010 0001")   // type=TXT, aclass=INTERNET
+                .hex("0000000a 0004")   // ttl=10, length=4
+                .hex("07").ascii("foo")  // segment claims 7 bytes but only 3 remain
+                .build();
+        decode(packet, packet.length);
+    }
+
+    @Test
+    public void testPTRRecords() throws IOException {
+        byte[] packet = new ByteBuilder()
+                .hex("0000 8400")
+                .hex("0000") // 0 questions
+                .hex("0002") // 2 answers
+                .hex("0000") // 0 authority RRs
+                .hex("0000") // 0 additional RRs
+
+                // 1st answer
+                .hex("09").ascii("_services")
+                .hex("07").ascii("_dns-sd")
+                .hex("04").ascii("_udp")
+                .hex("05").ascii("local")
+                .hex("00")
+                .hex("000c 0001")   // type=PTR, aclass=INTERNET
+                .hex("00001194 0010")   // ttl=4500, length=0x10
+                .hex("08").ascii("_example")
+                .hex("04").ascii("_tcp")
+                .hex("c0 23")   // pointer to "local"
+
+                // 2nd answer
+                .hex("c0 34")   // pointer to "_example._tcp.local"
+                .hex("000c 0001")   // type=PTR, aclass=INTERNET
+                .hex("00001194 000e")   // ttl=4500, length=0x0e
+                .hex("0b").ascii("device-1234")
+                .hex("c0 34")   // pointer to "_example._tcp.local"
+                .build();
+        Result r = decode(packet, packet.length);
+        assertEquals(2, r.ptrs.size());
+        assertEquals(SERVICE_TYPE_ENUMERATION, r.ptrs.get(0).fqdn);
+        assertEquals("_example._tcp.local", r.ptrs.get(0).ptrname);
+        assertEquals(4500, r.ptrs.get(0).ttl);
+        assertEquals("_example._tcp.local", r.ptrs.get(1).fqdn);
+        assertEquals("device-1234._example._tcp.local", r.ptrs.get(1).ptrname);
+        assertNull(r.a);
+    }
+
+    @Test
+    public void testRecordVisitor() throws IOException {
+        final List<String> events = new ArrayList<>();
+        RecordVisitor visitor = new RecordVisitor() {
+            @Override
+            public void onQuestion(String name, int type, int qclass) {
+                events.add("Q " + name + " " + type + " " + qclass);
+            }
+
+            @Override
+            public void onRecord(String name, int type, int rclass, int ttl, byte[] packet, int packetLength, int offset, int length) throws IOException {
+                events.add("R " + name + " " + type + " " + rclass + " " + ttl + " " + decodeName(packet, packetLength, offset, length));
+            }
+        };
+        byte[] query = resolvePacket("device-1234._example._tcp.local", true);
+        decode(query, query.length, visitor);
+        assertEquals(Arrays.asList(
+                "Q device-1234._example._tcp.local 1 32769",
+                "Q device-1234._example._tcp.local 33 32769",
+                "Q device-1234._example._tcp.local 16 32769"), events);
+
+        events.clear();
+        byte[] packet = new ByteBuilder()
+                .hex("0000 8400 0000 0002 0000 0000")
+                .hex("09").ascii("_services")
+                .hex("07").ascii("_dns-sd")
+                .hex("04").ascii("_udp")
+                .hex("05").ascii("local")
+                .hex("00")
+                .hex("000c 0001")
+                .hex("00001194 0010")
+                .hex("08").ascii("_example")
+                .hex("04").ascii("_tcp")
+                .hex("c0 23")   // pointer to "local"
+                .hex("c0 34")   // pointer to "_example._tcp.local"
+                .hex("000c 8001")   // cache-flush set
+                .hex("00000000 000e")   // goodbye
+                .hex("0b").ascii("device-1234")
+                .hex("c0 34")
+                .build();
+        decode(packet, packet.length, visitor);
+        assertEquals(Arrays.asList(
+                "R " + SERVICE_TYPE_ENUMERATION + " 12 1 4500 _example._tcp.local",
+                "R _example._tcp.local 12 32769 0 device-1234._example._tcp.local"), events);
+
+        // a pointer past the packet's length, into what a reused buffer held before, is invalid
+        byte[] buffer = new ByteBuilder()
+                .hex("0000 8400 0000 0001 0000 0000")
+                .hex("00")
+                .hex("000c 0001 00001194 0002")
+                .hex("c0 19")   // pointer to the stale bytes
+                .hex("05").ascii("stale")
+                .hex("00")
+                .build();
+        try {
+            decode(buffer, 25, visitor);
+            fail("pointer beyond packet length decoded");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDecodeRecordsKeepsAll() throws IOException {
+        byte[] packet = new ByteBuilder()
+                .hex("0000 8400 0000 0002 0000 0000")
+                .hex("08").ascii("_example")
+                .hex("04").ascii("_tcp")
+                .hex("05").ascii("local")
+                .hex("00")
+                .hex("000c 0001 00001194 000e")
+                .hex("0b").ascii("device-1234")
+                .hex("c0 0c")   // pointer to "_example._tcp.local"
+                .hex("c0 0c")
+                .hex("000c 0001 00001194 000e")
+                .hex("0b").ascii("device-5678")
+                .hex("c0 0c")
+                .build();
+        List<MDNSDiscover.Record> records = decodeRecords(packet, packet.length);
+        assertEquals(2, records.size());
+        assertEquals("device-1234._example._tcp.local", ((PTR) records.get(0)).ptrname);
+        assertEquals("device-5678._example._tcp.local", ((PTR) records.get(1)).ptrname);
+    }
+
+    @Test
+    public void testCacheFlushBit() throws IOException {
+        byte[] packet = createReplyPacket();
+        Result r = decode(packet, packet.length);
+        assertFalse(r.srv.cacheFlush);
+        packet[packet.length - 0x22 - 6 - 2] |= 0x80;   // set cache-flush on the TXT record
+        r = decode(packet, packet.length);
+        assertTrue(r.txt.cacheFlush);
+    }
+
+    @Test
+    public void testApplyUpdate() throws IOException {
+        byte[] packet = createReplyPacket();
+        Result existing = decode(packet, packet.length);
+
+        Result update = new Result();
+        update.srv = new SRV();
+        update.srv.fqdn = "device-1234._example._tcp.local";
+        update.srv.ttl = 120;
+        update.srv.port = 4321;
+        update.srv.target = "dev0123456789.local";
+        update.a = new A();
+        update.a.fqdn = "DEV0123456789.local";
+        update.a.ttl = 120;
+        update.a.ipaddr = "192.168.1.101";
+
+        // without cache-flush, records only fill in missing types
+        assertNull(applyUpdate(existing, update, "device-1234._example._tcp.local"));
+
+        update.srv.cacheFlush = true;
+        update.a.cacheFlush = true;
+        Result merged = applyUpdate(existing, update, "device-1234._example._tcp.local");
+        assertEquals(4321, merged.srv.port);
+        assertEquals("192.168.1.101", merged.a.ipaddr);
+        assertSame(existing.txt, merged.txt);
+        assertEquals(1234, existing.srv.port);  // unchanged
+
+        // records for other names do not apply
+        update.a.fqdn = "other.local";
+        assertNull(applyUpdate(existing, update, "device-5678._example._tcp.local"));
+
+        // goodbyes do not replace records
+        update.srv.ttl = 0;
+        update.a = null;
+        assertNull(applyUpdate(existing, update, "device-1234._example._tcp.local"));
+    }
+
+    @Test
+    public void testTruncatedReplyPacketsWithResizedArray() {
+        byte[] packet = createReplyPacket();
+        for (int truncatedLength = 0; truncatedLength < packet.length; truncatedLength++) {
+            byte[] truncatedPacket = Arrays.copyOf(packet, truncatedLength);
+            try {
+                decode(truncatedPacket, truncatedPacket.length);
+                fail("decoding a truncated packet did not throw IOException");
+            } catch (IOException e) {
+                // this is OK...
+            }
+        }
+    }
+
+    @Test
+    public void testTruncatedReplyPacketsWithOriginalArray() {
+        byte[] packet = createReplyPacket();
+        for (int truncatedLength = 0; truncatedLength < packet.length; truncatedLength++) {
+            try {
+                decode(packet, truncatedLength);
+                fail("decoding a truncated packet did not throw IOException");
+            } catch (IOException e) {
+                // this is OK...
+            }
+        }
+    }
+
+    @Test(expected=EOFException.class)
+    public void testAbortOnPointerOutOfRange() throws IOException {
+        byte[] packet = new ByteBuilder()
+                .hex("0000 8400")
+                .hex("0000") // 0 questions
+                .hex("0001") // 1 answer
+                .hex("0000") // 0 authority RRs
+                .hex("0000") // 0 additional RRs
+
+                // 1st answer
+                .hex("04").ascii("TEST")
+                .hex("ffff")
+                .hex("0001 0001")   // type=A, aclass=INTERNET
+                .hex("0000000a 0004")   // ttl=10, length=4
+                .hex("c0 a8 01 64")    // 192.168.1.100
+                .build();
+        decode(packet, packet.length);
+    }
+
+    @Test(expected=IOException.class)
+    public void testAbortOnInfiniteDomainName() throws IOException {
+        byte[] packet = new ByteBuilder()
+                .hex("0000 8400")
+                .hex("0000") // 0 questions
+                .hex("0001") // 1 answer
+                .hex("0000") // 0 authority RRs
+                .hex("0000") // 0 additional RRs
+
+                // 1st answer
+                .hex("04").ascii("TEST")
+                .hex("c00c")    // pointer to "TEST" => this encodes the infinite domain "TEST.TEST.TEST..."
+                .hex("0001 0001")   // type=A, aclass=INTERNET
+                .hex("0000000a 0004")   // ttl=10, length=4
+                .hex("c0 a8 01 64")    // 192.168.1.100
+                .build();
+        decode(packet, packet.length);
+    }
+
+    @Test(expected=IOException.class)
+    public void testAbortOnCyclicEmptyDomainName() throws IOException {
+        byte[] packet = new ByteBuilder()
+                .hex("0000 8400")
+                .hex("0000") // 0 questions
+                .hex("0001") // 1 answer
+                .hex("0000") // 0 authority RRs
+                .hex("0000") // 0 additional RRs
+
+                // 1st answer
+                .hex("04").ascii("TEST")
+                // now follows an infinite loop of pointers:
+                .hex("c013")    // [0011] => 0013
+                .hex("c011")    // [0013] => 0011
+                .hex("0001 0001")   // type=A, aclass=INTERNET
+                .hex("0000000a 0004")   // ttl=10, length=4
+                .hex("c0 a8 01 64")    // 192.168.1.100
+                .build();
+        decode(packet, packet.length);
+    }
+
+    @Test
+    public void testDecodeRandomPackets() {
+        final int SEED = 0x5FC45975;
+        final int NUM_PACKETS = 10000;
+        final int MAX_PACKET_LENGTH = 1536;
+        Random random = new Random(SEED);
+        for (int i = 0; i < NUM_PACKETS; i++) {
+            int packetLength = random.nextInt(MAX_PACKET_LENGTH+1);
+            byte[] packet = new byte[packetLength];
+            random.nextBytes(packet);
+            try {
+                decode(packet, packetLength);
+                fail("decoding a random packet did not throw IOException");
+            } catch (IOException e) {
+                // this is OK...
+            }
+        }
+    }
+
+    private byte[] createReplyPacket() {
+        return new ByteBuilder()
+                .hex("0000 8400")
+                .hex("0002") // 2 questions
+                .hex("0003") // 3 answers
+                .hex("0000") // 0 authority RRs
+                .hex("0000") // 0 additional RRs
+
+                // 1st question
+                .hex("0b").ascii("device-1234")
+                .hex("08").ascii("_example")
+                .hex("04").ascii("_tcp")
+                .hex("05").ascii("local")
+                .hex("00")
+                .hex("0010 8001")   // type=TXT, qclass=UNICAST|INTERNET
+
+                // 2nd question
+                .hex("c00c")    // pointer to "device-1234._example._tcp.local"
+                .hex("0021 8001")   // type=SRV, qclass=UNICAST|INTERNET
+
+                // 1st answer
+                .hex("c00c")    // pointer to "device-1234._example._tcp.local"
+                .hex("0021 0001")   // type=SRV, aclass=INTERNET
+                .hex("0000000a 0016")   // ttl=10, length=0x16
+                .hex("0000 0000 04d2")  // priority=0, weight=0, port=1234
+                .hex("0d").ascii("dev0123456789")    // target
+                .hex("c026")    // pointer to ".local"
+
+                // 2nd answer
+                .hex("c049")    // pointer to "dev0123456789.local"
+                .hex("0001 0001")   // type=A, aclass=INTERNET
+                .hex("0000000a 0004")   // ttl=10, length=4
+                .hex("c0 a8 01 64")    // 192.168.1.100
+
+                // 3rd answer
+                .hex("c00c")    // pointer to "device-1234._example._tcp.local"
+                .hex("0010 0001")   // type=TXT, aclass=INTERNET
+                .hex("0000000a 0022")   // ttl=10, length=0x22
+                .hex("07").ascii("foo=bar")
+                .hex("03").ascii("bar")
+                .hex("0b").ascii("foo=ignored")    // the FIRST instance of foo takes precedence
+                .hex("09").ascii("txtvers=1")
+                .build();
+    }
+}
@@ -0,0 +1,66 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class NegativeCacheTest extends TestCase {
+
+    @Test
+    public void testBackoffDoublesUpToMaximum() {
+        NegativeCache cache = new NegativeCache(1000, 5000);
+        assertEquals(Long.MIN_VALUE, cache.getRetryTime("dev"));
+        assertEquals(1000, cache.onFailure("dev", 0));
+        assertEquals(3000, cache.onFailure("dev", 1000));
+        assertEquals(7000, cache.onFailure("dev", 3000));
+        assertEquals(12000, cache.onFailure("dev", 7000));
+        assertEquals(17000, cache.onFailure("dev", 12000));
+        assertEquals(17000, cache.getRetryTime("dev"));
+    }
+
+    @Test
+    public void testRemoveResetsBackoff() {
+        NegativeCache cache = new NegativeCache(1000, 5000);
+        cache.onFailure("dev", 0);
+        cache.onFailure("dev", 1000);
+        cache.remove("dev");
+        assertEquals(Long.MIN_VALUE, cache.getRetryTime("dev"));
+        assertEquals(11000, cache.onFailure("dev", 10000));
+    }
+
+    @Test
+    public void testEviction() {
+        NegativeCache cache = new NegativeCache(1000, 5000, 2);
+        cache.onFailure("a", 0);
+        cache.onFailure("b", 0);
+        cache.onFailure("c", 0);
+        assertEquals(Long.MIN_VALUE, cache.getRetryTime("a"));
+        assertEquals(1000, cache.getRetryTime("c"));
+    }
+}
@@ -0,0 +1,66 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class PassiveListenerTest extends TestCase {
+
+    private static final long NOW = 100000;
+
+    @Test
+    public void testOwnQueryRecognisedOnce() {
+        PassiveListener.SentQueries sent = new PassiveListener.SentQueries();
+        byte[] query = MDNSDiscover.resolvePacket("device-1234._example._tcp.local", false);
+        sent.add(query, NOW);
+        // received into a larger buffer
+        byte[] buf = new byte[9000];
+        System.arraycopy(query, 0, buf, 0, query.length);
+        assertFalse(sent.remove(buf, query.length - 1, NOW + 1));
+        assertTrue(sent.remove(buf, query.length, NOW + 1));
+        // the same question again comes from another host
+        assertFalse(sent.remove(buf, query.length, NOW + 2));
+    }
+
+    @Test
+    public void testOtherQueryNotRecognised() {
+        PassiveListener.SentQueries sent = new PassiveListener.SentQueries();
+        sent.add(MDNSDiscover.resolvePacket("device-1234._example._tcp.local", false), NOW);
+        byte[] other = MDNSDiscover.resolvePacket("device-5678._example._tcp.local", false);
+        assertFalse(sent.remove(other, other.length, NOW + 1));
+    }
+
+    @Test
+    public void testSentQueryExpires() {
+        PassiveListener.SentQueries sent = new PassiveListener.SentQueries();
+        byte[] query = MDNSDiscover.resolvePacket("device-1234._example._tcp.local", false);
+        sent.add(query, NOW);
+        assertFalse(sent.remove(query, query.length, NOW + PassiveListener.LOOPBACK_WINDOW_MILLIS + 1));
+    }
+}
@@ -0,0 +1,170 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class PersistentCacheTest extends TestCase {
+
+    private static final String NAME = "device-1234._example._tcp.local";
+    private static final long NOW = 1500000000000L;
+
+    private static MDNSDiscover.Result newResult(long receiveTime) {
+        MDNSDiscover.Result result = new MDNSDiscover.Result();
+        result.a = new MDNSDiscover.A();
+        result.a.fqdn = "dev0123456789.local";
+        result.a.ttl = 120;
+        result.a.ipaddr = "192.168.1.100";
+        result.a.receiveTime = receiveTime;
+        result.srv = new MDNSDiscover.SRV();
+        result.srv.fqdn = NAME;
+        result.srv.ttl = 4500;
+        result.srv.port = 1234;
+        result.srv.target = "dev0123456789.local";
+        result.srv.receiveTime = receiveTime;
+        result.txt = new MDNSDiscover.TXT(new byte[] { 7, 'f', 'o', 'o', '=', 'b', 'a', 'r' });
+        result.txt.fqdn = NAME;
+        result.txt.ttl = 4500;
+        result.txt.receiveTime = receiveTime;
+        return result;
+    }
+
+    private static File save(long receiveTime) throws IOException {
+        return save(newResult(receiveTime));
+    }
+
+    private static File save(MDNSDiscover.Result result) throws IOException {
+        File file = File.createTempFile("tinydnssd", ".cache");
+        file.deleteOnExit();
+        Map<String, MDNSDiscover.Result> services = new HashMap<>();
+        services.put(NAME, result);
+        services.put("no-receive-time._example._tcp.local", newResult(0));
+        PersistentCache.save(file, services);
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = save(NOW);
+        Map<String, MDNSDiscover.Result> loaded = PersistentCache.load(file, NOW + 20000);
+        assertEquals(1, loaded.size());
+        MDNSDiscover.Result r = loaded.get(NAME);
+        assertEquals("192.168.1.100", r.a.ipaddr);
+        assertEquals("dev0123456789.local", r.a.fqdn);
+        assertEquals(100, r.a.ttl);
+        assertEquals(1234, r.srv.port);
+        assertEquals("dev0123456789.local", r.srv.target);
+        assertEquals(NAME, r.srv.fqdn);
+        assertEquals(4480, r.srv.ttl);
+        assertEquals("bar", r.txt.get("foo"));
+        assertEquals(NAME, r.txt.fqdn);
+    }
+
+    @Test
+    public void testExpiredRecordsDropped() throws IOException {
+        File file = save(NOW);
+        // A record (120s) has expired but SRV and TXT (4500s) have not
+        MDNSDiscover.Result r = PersistentCache.load(file, NOW + 200000).get(NAME);
+        assertNull(r.a);
+        assertNotNull(r.srv);
+        assertNotNull(r.txt);
+        // everything has expired
+        assertTrue(PersistentCache.load(file, NOW + 5000000).isEmpty());
+    }
+
+    @Test
+    public void testLastSecondNotGoodbye() throws IOException {
+        File file = save(NOW);
+        // the A record (120s) has half a second left
+        MDNSDiscover.Result r = PersistentCache.load(file, NOW + 119500).get(NAME);
+        assertEquals(1, r.a.ttl);
+        assertFalse(r.a.isGoodbye());
+    }
+
+    @Test
+    public void testRecordsKeepTheirOwnExpiry() throws IOException {
+        // the A record was refreshed by a later packet, the SRV and TXT records were not
+        MDNSDiscover.Result result = newResult(NOW);
+        result.a.receiveTime = NOW + 100000;
+        MDNSDiscover.Result r = PersistentCache.load(save(result), NOW + 200000).get(NAME);
+        assertEquals(20, r.a.ttl);
+        assertEquals(4300, r.srv.ttl);
+        assertEquals(4300, r.txt.ttl);
+    }
+
+    @Test
+    public void testResaveKeepsExpiry() throws IOException {
+        // half a second into the A record's last 100 seconds, so its TTL is rounded up
+        Map<String, MDNSDiscover.Result> loaded = PersistentCache.load(save(NOW), NOW + 20500);
+        assertEquals(100, loaded.get(NAME).a.ttl);
+        File file = File.createTempFile("tinydnssd", ".cache");
+        file.deleteOnExit();
+        PersistentCache.save(file, loaded);
+        assertEquals(1, PersistentCache.load(file, NOW + 119900).get(NAME).a.ttl);
+        assertNull(PersistentCache.load(file, NOW + 120000).get(NAME).a);
+    }
+
+    @Test
+    public void testFailedSaveLeavesNoTemporaryFile() throws IOException {
+        File file = save(NOW);
+        long length = file.length();
+        Map<String, MDNSDiscover.Result> services = new HashMap<>();
+        MDNSDiscover.Result result = newResult(NOW);
+        result.a.ipaddr = "not an address";
+        services.put(NAME, result);
+        try {
+            PersistentCache.save(file, services);
+            fail("invalid address saved");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void testMissingFile() throws IOException {
+        assertTrue(PersistentCache.load(new File("/nonexistent/tinydnssd.cache"), NOW).isEmpty());
+    }
+
+    @Test(expected=IOException.class)
+    public void testCorruptFile() throws IOException {
+        File file = save(NOW);
+        FileOutputStream fos = new FileOutputStream(file, true);
+        fos.getChannel().truncate(file.length() - 3);
+        fos.close();
+        PersistentCache.load(file, NOW);
+    }
+}
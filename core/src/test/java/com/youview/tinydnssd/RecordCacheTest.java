@@ -0,0 +1,147 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class RecordCacheTest extends TestCase {
+
+    private static final String SERVICE = "device-1234._example._tcp.local";
+    private static final String HOST = "android-1234.local";
+
+    private static MDNSDiscover.Result srvTxt(int ttl) {
+        MDNSDiscover.Result result = new MDNSDiscover.Result();
+        result.srv = new MDNSDiscover.SRV();
+        result.srv.fqdn = SERVICE;
+        result.srv.ttl = ttl;
+        result.srv.target = HOST;
+        result.srv.port = 8080;
+        result.txt = new MDNSDiscover.TXT();
+        result.txt.fqdn = SERVICE;
+        result.txt.ttl = ttl;
+        return result;
+    }
+
+    private static MDNSDiscover.Result a(int ttl) {
+        MDNSDiscover.Result result = new MDNSDiscover.Result();
+        result.a = new MDNSDiscover.A();
+        result.a.fqdn = HOST;
+        result.a.ttl = ttl;
+        result.a.ipaddr = "192.168.0.2";
+        return result;
+    }
+
+    @Test
+    public void testCompleteFromSeparatePackets() {
+        RecordCache cache = new RecordCache();
+        cache.put(srvTxt(120), 0);
+        assertNull(cache.get(SERVICE, 0));
+        cache.put(a(120), 0);
+        MDNSDiscover.Result result = cache.get("Device-1234._example._tcp.local", 1000);
+        assertNotNull(result);
+        assertEquals(8080, result.srv.port);
+        assertEquals("192.168.0.2", result.a.ipaddr);
+    }
+
+    @Test
+    public void testEveryRecordOfPacketCached() {
+        RecordCache cache = new RecordCache();
+        MDNSDiscover.Result first = srvTxt(120);
+        MDNSDiscover.Result second = srvTxt(120);
+        second.srv.fqdn = second.txt.fqdn = "device-5678._example._tcp.local";
+        cache.put(Arrays.<MDNSDiscover.Record>asList(first.srv, first.txt, second.srv, second.txt, a(120).a), 0);
+        assertNotNull(cache.get(SERVICE, 0));
+        assertNotNull(cache.get("device-5678._example._tcp.local", 0));
+    }
+
+    @Test
+    public void testExpiry() {
+        RecordCache cache = new RecordCache();
+        cache.put(srvTxt(120), 0);
+        cache.put(a(10), 0);
+        assertNotNull(cache.get(SERVICE, 9999));
+        assertNull(cache.get(SERVICE, 10000));
+    }
+
+    @Test
+    public void testGoodbyeRemoves() {
+        RecordCache cache = new RecordCache();
+        cache.put(srvTxt(120), 0);
+        cache.put(a(120), 0);
+        MDNSDiscover.Result goodbye = srvTxt(0);
+        goodbye.txt = null;
+        cache.put(goodbye, 1000);
+        assertNull(cache.get(SERVICE, 1000));
+    }
+
+    @Test
+    public void testEviction() {
+        RecordCache cache = new RecordCache(1);
+        cache.put(srvTxt(120), 0);
+        cache.put(a(120), 0);
+        MDNSDiscover.Result other = srvTxt(120);
+        other.srv.fqdn = other.txt.fqdn = "device-5678._example._tcp.local";
+        cache.put(other, 0);
+        assertNull(cache.get(SERVICE, 0));
+    }
+
+    @Test
+    public void testQuestionTime() {
+        RecordCache cache = new RecordCache();
+        assertEquals(-1, cache.getQuestionTime(SERVICE, 0, 1000));
+        cache.putQuestion("DEVICE-1234._example._tcp.local", 500);
+        assertEquals(500, cache.getQuestionTime(SERVICE, 1000, 1000));
+        assertEquals(-1, cache.getQuestionTime(SERVICE, 1500, 1000));
+    }
+
+    @Test
+    public void testAwaitPutWakesOnPut() throws InterruptedException {
+        final RecordCache cache = new RecordCache();
+        Thread putter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cache.put(srvTxt(120), 0);
+            }
+        };
+        long start = System.currentTimeMillis();
+        synchronized (cache) {
+            putter.start();
+            cache.awaitPut(5000);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        putter.join();
+    }
+}
@@ -0,0 +1,92 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class ResolveQueueTest extends TestCase {
+
+    private static final int AGING_MILLIS = 1000;
+
+    @Test
+    public void testFifoForEqualPriority() {
+        ResolveQueue queue = new ResolveQueue(AGING_MILLIS);
+        queue.put("a", 0, 0);
+        queue.put("b", 0, 0);
+        queue.put("c", 0, 10);
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testHigherPriorityFirst() {
+        ResolveQueue queue = new ResolveQueue(AGING_MILLIS);
+        queue.put("low", -1, 0);
+        queue.put("normal", 0, 0);
+        queue.put("high", 1, 500);
+        assertEquals("high", queue.poll());
+        assertEquals("normal", queue.poll());
+        assertEquals("low", queue.poll());
+    }
+
+    @Test
+    public void testAgingPreventsStarvation() {
+        ResolveQueue queue = new ResolveQueue(AGING_MILLIS);
+        queue.put("old-low", -1, 0);
+        // queued more than one aging interval later, so the old entry has caught up
+        queue.put("new-normal", 0, 1500);
+        assertEquals("old-low", queue.poll());
+        assertEquals("new-normal", queue.poll());
+    }
+
+    @Test
+    public void testUpdatePriorityKeepsEnqueueTime() {
+        ResolveQueue queue = new ResolveQueue(AGING_MILLIS);
+        queue.put("a", 0, 0);
+        queue.put("b", 0, 100);
+        queue.updatePriority("b", 1, 5000);
+        queue.updatePriority("missing", 1, 5000);
+        assertEquals("b", queue.poll());
+        assertEquals("a", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testRemove() {
+        ResolveQueue queue = new ResolveQueue(AGING_MILLIS);
+        queue.put("a", 0, 0);
+        queue.put("b", 0, 0);
+        queue.remove("a");
+        assertEquals("b", queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,94 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class RttEstimatorTest extends TestCase {
+
+    @Test
+    public void testInitialTimeout() {
+        RttEstimator rtt = new RttEstimator(1000, 100, 4000);
+        assertEquals(1000, rtt.getTimeout("device-1234._example._tcp.local"));
+    }
+
+    @Test
+    public void testFastResponderConverges() {
+        RttEstimator rtt = new RttEstimator(1000, 100, 4000);
+        for (int i = 0; i < 20; i++) {
+            rtt.addSample("fast", 30);
+        }
+        assertEquals(100, rtt.getTimeout("fast"));
+        // unknown responders benefit from the network-wide estimate
+        assertEquals(100, rtt.getTimeout("unknown"));
+    }
+
+    @Test
+    public void testFirstSample() {
+        RttEstimator rtt = new RttEstimator(1000, 100, 4000);
+        rtt.addSample("dev", 200);
+        // srtt = 200, rttvar = 100 => timeout = srtt + 4 * rttvar
+        assertEquals(600, rtt.getTimeout("dev"));
+    }
+
+    @Test
+    public void testTimeoutBacksOffPerResponder() {
+        RttEstimator rtt = new RttEstimator(1000, 100, 4000);
+        rtt.onTimeout("sleepy");
+        assertEquals(2000, rtt.getTimeout("sleepy"));
+        rtt.onTimeout("sleepy");
+        rtt.onTimeout("sleepy");
+        assertEquals(4000, rtt.getTimeout("sleepy"));
+        assertEquals(1000, rtt.getTimeout("other"));
+    }
+
+    @Test
+    public void testSlowResponderKeepsLongTimeout() {
+        RttEstimator rtt = new RttEstimator(1000, 100, 4000);
+        for (int i = 0; i < 20; i++) {
+            rtt.addSample("fast", 30);
+        }
+        rtt.addSample("slow", 3000);
+        assertTrue(rtt.getTimeout("slow") > 3000);
+        assertEquals(100, rtt.getTimeout("fast"));
+    }
+
+    @Test
+    public void testClear() {
+        RttEstimator rtt = new RttEstimator(1000, 100, 4000);
+        rtt.addSample("dev", 30);
+        rtt.clear();
+        assertEquals(1000, rtt.getTimeout("dev"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidBounds() {
+        new RttEstimator(1000, 2000, 4000);
+    }
+}
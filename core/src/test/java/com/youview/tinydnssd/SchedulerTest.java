@@ -0,0 +1,111 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class SchedulerTest extends TestCase {
+
+    @Test
+    public void testDirectPostRunsOnCallingThread() {
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger runs = new AtomicInteger();
+        Scheduler.direct().post(new Runnable() {
+            @Override
+            public void run() {
+                assertSame(caller, Thread.currentThread());
+                runs.incrementAndGet();
+            }
+        });
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testPostDelayed() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Scheduler.direct().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 10);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRemoveCallbacks() throws InterruptedException {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Scheduler scheduler = Scheduler.forExecutor(executor);
+            final AtomicInteger runs = new AtomicInteger();
+            Runnable r = new Runnable() {
+                @Override
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            };
+            scheduler.postDelayed(r, 50);
+            scheduler.postDelayed(r, 60);
+            scheduler.removeCallbacks(r);
+            Thread.sleep(150);
+            assertEquals(0, runs.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRunForgetsRunnable() throws InterruptedException {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Scheduler.ExecutorScheduler scheduler = (Scheduler.ExecutorScheduler) Scheduler.forExecutor(executor);
+            final CountDownLatch latch = new CountDownLatch(2);
+            Runnable r = new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            };
+            scheduler.postDelayed(r, 0);
+            scheduler.postDelayed(r, 10);
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+            synchronized (scheduler) {
+                assertTrue(scheduler.mPending.isEmpty());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class ServiceRegistryTest extends TestCase {
+
+    private static MDNSDiscover.Result service(String host, String ipaddr, String txt) {
+        MDNSDiscover.Result result = new MDNSDiscover.Result();
+        result.srv = new MDNSDiscover.SRV();
+        result.srv.target = host;
+        result.a = new MDNSDiscover.A();
+        result.a.fqdn = host;
+        result.a.ipaddr = ipaddr;
+        byte[] data = txt.getBytes();
+        byte[] segment = new byte[data.length + 1];
+        segment[0] = (byte) data.length;
+        System.arraycopy(data, 0, segment, 1, data.length);
+        result.txt = new MDNSDiscover.TXT(segment);
+        return result;
+    }
+
+    @Test
+    public void testIndexes() {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.put("a._example._tcp.local", service("host-1.local", "192.168.0.1", "model=X"));
+        registry.put("b._example._tcp.local", service("host-1.local", "192.168.0.1", "model=Y"));
+        registry.put("c._example._tcp.local", service("host-2.local", "192.168.0.2", "model=X"));
+
+        assertEquals(new HashSet<>(Arrays.asList("a._example._tcp.local", "b._example._tcp.local")),
+                registry.getNamesByHost("HOST-1.local"));
+        assertEquals(Collections.singleton("c._example._tcp.local"), registry.getNamesByAddress("192.168.0.2"));
+        assertEquals(new HashSet<>(Arrays.asList("a._example._tcp.local", "c._example._tcp.local")),
+                registry.getNamesByTxt("Model", "X"));
+        assertTrue(registry.getNamesByTxt("model", "x").isEmpty());
+    }
+
+    @Test
+    public void testReplaceAndRemoveUpdateIndexes() {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.put("a._example._tcp.local", service("host-1.local", "192.168.0.1", "model=X"));
+        registry.put("a._example._tcp.local", service("host-2.local", "192.168.0.2", "model=Y"));
+        assertTrue(registry.getNamesByHost("host-1.local").isEmpty());
+        assertTrue(registry.getNamesByTxt("model", "X").isEmpty());
+        assertEquals(Collections.singleton("a._example._tcp.local"), registry.getNamesByTxt("model", "Y"));
+
+        assertNotNull(registry.remove("a._example._tcp.local"));
+        assertNull(registry.get("a._example._tcp.local"));
+        assertTrue(registry.getNamesByHost("host-2.local").isEmpty());
+        assertTrue(registry.getNamesByAddress("192.168.0.2").isEmpty());
+    }
+
+    @Test
+    public void testTxtIndexMaintainedAfterFirstLookup() {
+        ServiceRegistry registry = new ServiceRegistry();
+        assertTrue(registry.getNamesByTxt("model", "X").isEmpty());
+        registry.put("a._example._tcp.local", service("host-1.local", "192.168.0.1", "MODEL=X"));
+        assertEquals(Collections.singleton("a._example._tcp.local"), registry.getNamesByTxt("model", "X"));
+        registry.put("a._example._tcp.local", service("host-1.local", "192.168.0.1", "model"));
+        assertTrue(registry.getNamesByTxt("model", "X").isEmpty());
+        assertEquals(Collections.singleton("a._example._tcp.local"), registry.getNamesByTxt("model", null));
+        registry.remove("a._example._tcp.local");
+        assertTrue(registry.getNamesByTxt("model", null).isEmpty());
+    }
+
+    @Test
+    public void testSnapshotIsSharedUntilChange() {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.put("a._example._tcp.local", service("host-1.local", "192.168.0.1", "model=X"));
+        Map<String, MDNSDiscover.Result> first = registry.snapshot();
+        assertSame(first, registry.snapshot());
+        assertEquals(1, first.size());
+
+        registry.put("b._example._tcp.local", service("host-1.local", "192.168.0.1", "model=X"));
+        Map<String, MDNSDiscover.Result> second = registry.snapshot();
+        assertEquals(1, first.size());
+        assertEquals(2, second.size());
+
+        registry.clear();
+        assertTrue(registry.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testReadersDoNotWaitForWriters() throws InterruptedException {
+        final ServiceRegistry registry = new ServiceRegistry();
+        registry.put("a._example._tcp.local", service("host-1.local", "192.168.0.1", "model=X"));
+        Map<String, MDNSDiscover.Result> before = registry.snapshot();
+        registry.put("b._example._tcp.local", service("host-2.local", "192.168.0.2", "model=Y"));
+
+        // a writer that holds the lock until the reads are done
+        final CountDownLatch locked = new CountDownLatch(1), done = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                registry.mWriteLock.lock();
+                try {
+                    locked.countDown();
+                    done.await();
+                } catch (InterruptedException e) {
+                    // unlock and exit
+                } finally {
+                    registry.mWriteLock.unlock();
+                }
+            }
+        };
+        writer.start();
+        try {
+            assertTrue(locked.await(1, TimeUnit.SECONDS));
+            assertNotNull(registry.get("b._example._tcp.local"));
+            Map<String, MDNSDiscover.Result> snapshot = registry.snapshot();
+            assertEquals(2, snapshot.size());
+            assertNotSame(before, snapshot);
+            assertEquals(Collections.singleton("b._example._tcp.local"), registry.getNamesByHost("host-2.local"));
+            // a key not indexed yet is answered by scanning
+            assertEquals(Collections.singleton("a._example._tcp.local"), registry.getNamesByTxt("model", "X"));
+        } finally {
+            done.countDown();
+            writer.join();
+        }
+        // and indexed by the next lookup
+        assertEquals(Collections.singleton("b._example._tcp.local"), registry.getNamesByTxt("model", "Y"));
+    }
+}
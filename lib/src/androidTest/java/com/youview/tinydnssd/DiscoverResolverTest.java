@@ -220,6 +220,33 @@ public class DiscoverResolverTest extends ApplicationTestCase<Application> {
         stopDiscoveryOnMainThread();
     }
 
+    public void testFilterDropsService() throws IOException, InterruptedException {
+        mDiscoverResolver.setFilter(new DiscoverResolver.Filter() {
+            @Override
+            public boolean accept(String serviceName, MDNSDiscover.TXT txt) {
+                return txt != null && "primary".equals(txt.get("role"));
+            }
+        });
+        startDiscoveryOnMainThread();
+        mDiscoveryListener.onDiscoveryStarted(SERVICE_TYPE);
+        MDNSDiscover.Result primary = new MDNSDiscover.Result();
+        primary.txt = newTXT("role=primary");
+        MDNSDiscover.Result secondary = new MDNSDiscover.Result();
+        secondary.txt = newTXT("role=secondary");
+        when(mMockResolver.resolve(eq("device-1234._example._tcp.local"), anyInt())).thenReturn(secondary);
+        when(mMockResolver.resolve(eq("device-5678._example._tcp.local"), anyInt())).thenReturn(primary);
+        mLatch = new CountDownLatch(1);
+        // services are resolved in the order found, so the rejected one is handled first
+        mDiscoveryListener.onServiceFound(newNsdServiceInfo("device-1234", "_example._tcp."));
+        mDiscoveryListener.onServiceFound(newNsdServiceInfo("device-5678", "_example._tcp."));
+        mLatch.await();
+        Map<String, MDNSDiscover.Result> expectedMap = new HashMap<>();
+        expectedMap.put("device-5678._example._tcp.local", primary);
+        verify(mMockListener).onServicesChanged(eq(expectedMap));
+        assertEquals(expectedMap, mDiscoverResolver.getServices());
+        stopDiscoveryOnMainThread();
+    }
+
     public void testServiceLost() throws IOException, InterruptedException {
         startDiscoveryOnMainThread();
         mDiscoveryListener.onDiscoveryStarted(SERVICE_TYPE);
@@ -252,6 +279,41 @@ public class DiscoverResolverTest extends ApplicationTestCase<Application> {
         stopDiscoveryOnMainThread();
     }
 
+    public void testFailedResolveNotRepeatedOnFlap() throws IOException, InterruptedException {
+        startDiscoveryOnMainThread();
+        mDiscoveryListener.onDiscoveryStarted(SERVICE_TYPE);
+        NsdServiceInfo serviceInfo = newNsdServiceInfo("device-1234", "_example._tcp.");
+        when(mMockResolver.resolve(eq("device-1234._example._tcp.local"), anyInt())).thenThrow(new IOException());
+        mDiscoveryListener.onServiceFound(serviceInfo);
+        Thread.sleep(100);
+        // the service flaps, but is not resolved again until its back-off expires
+        mDiscoveryListener.onServiceLost(serviceInfo);
+        mDiscoveryListener.onServiceFound(serviceInfo);
+        Thread.sleep(100);
+        verify(mMockResolver, times(1)).resolve(eq("device-1234._example._tcp.local"), anyInt());
+        stopDiscoveryOnMainThread();
+    }
+
+    public void testServiceLostDuringResolve() throws IOException, InterruptedException {
+        startDiscoveryOnMainThread();
+        mDiscoveryListener.onDiscoveryStarted(SERVICE_TYPE);
+        final NsdServiceInfo serviceInfo = newNsdServiceInfo("device-1234", "_example._tcp.");
+        final MDNSDiscover.Result result = new MDNSDiscover.Result();
+        when(mMockResolver.resolve(eq("device-1234._example._tcp.local"), anyInt())).thenAnswer(new Answer<MDNSDiscover.Result>() {
+            @Override
+            public MDNSDiscover.Result answer(InvocationOnMock invocation) throws Throwable {
+                // the resolve is cancelled, so its late result is not reported
+                mDiscoveryListener.onServiceLost(serviceInfo);
+                Thread.sleep(100);
+                return result;
+            }
+        });
+        mDiscoveryListener.onServiceFound(serviceInfo);
+        Thread.sleep(300);
+        verify(mMockListener, never()).onServicesChanged(anyMap());
+        stopDiscoveryOnMainThread();
+    }
+
     public void testNoCallbackAfterStop() throws IOException, InterruptedException {
         startDiscoveryOnMainThread();
         mDiscoveryListener.onDiscoveryStarted(SERVICE_TYPE);
@@ -359,6 +421,34 @@ public class DiscoverResolverTest extends ApplicationTestCase<Application> {
         stopDiscoveryOnMainThread();
     }
 
+    /**
+     * Find two services in quick succession with a dispatch interval set. Even though the main
+     * thread is free, there should be only one onServicesChanged() with both services.
+     */
+    public void testDispatchIntervalCoalescesBurst() throws IOException, InterruptedException {
+        MDNSDiscover.Result result1 = new MDNSDiscover.Result();
+        when(mMockResolver.resolve(eq("device-1234._example._tcp.local"), anyInt())).thenReturn(result1);
+        MDNSDiscover.Result result2 = new MDNSDiscover.Result();
+        when(mMockResolver.resolve(eq("device-5678._example._tcp.local"), anyInt())).thenReturn(result2);
+
+        mDiscoverResolver.setDispatchInterval(300, 1000);
+        startDiscoveryOnMainThread();
+        mDiscoveryListener.onDiscoveryStarted(SERVICE_TYPE);
+        mLatch = new CountDownLatch(1);
+        mDiscoveryListener.onServiceFound(newNsdServiceInfo("device-1234", "_example._tcp."));
+        Thread.sleep(50);
+        mDiscoveryListener.onServiceFound(newNsdServiceInfo("device-5678", "_example._tcp."));
+        mLatch.await();
+
+        Map<String, MDNSDiscover.Result> expectedServices = new HashMap<>();
+        expectedServices.put("device-1234._example._tcp.local", result1);
+        expectedServices.put("device-5678._example._tcp.local", result2);
+        verify(mMockListener, times(1)).onServicesChanged(anyMap());
+        verify(mMockListener, times(1)).onServicesChanged(eq(expectedServices));
+
+        stopDiscoveryOnMainThread();
+    }
+
     /**
      * Resolve a service but inhibit the callback by having the main thread blocked. Stop the
      * DiscoverResolver as soon as the main thread is unblocked, then check the callback does not
@@ -461,6 +551,13 @@ public class DiscoverResolverTest extends ApplicationTestCase<Application> {
         runOnMainThread(DISCOVER_STOP);
     }
 
+    private static MDNSDiscover.TXT newTXT(String attribute) {
+        byte[] data = new byte[attribute.length() + 1];
+        data[0] = (byte) attribute.length();
+        System.arraycopy(attribute.getBytes(), 0, data, 1, attribute.length());
+        return new MDNSDiscover.TXT(data);
+    }
+
     private static NsdServiceInfo newNsdServiceInfo(String name, String type) {
         NsdServiceInfo result = new NsdServiceInfo();
         result.setServiceName(name);
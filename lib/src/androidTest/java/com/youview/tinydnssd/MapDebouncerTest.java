@@ -49,7 +49,7 @@ public class MapDebouncerTest extends ApplicationTestCase<Application> {
 
     public void setUp() {
         createMockListener();
-        mMapDebouncer = new MapDebouncer<>(DEBOUNCE_PERIOD, mMockListener);
+        mMapDebouncer = new MapDebouncer<>(DEBOUNCE_PERIOD, mMockListener, HandlerScheduler.mainThread(), null);
     }
 
     @SuppressWarnings("unchecked")
@@ -106,6 +106,46 @@ public class MapDebouncerTest extends ApplicationTestCase<Application> {
         verifyNoMoreInteractions(mMockListener);
     }
 
+    public void testRemoveWithShortDelay() {
+        putFromMainThread("foo", "bar");
+        verify(mMockListener).put(eq("foo"), eq("bar"));
+        removeFromMainThread("foo", DEBOUNCE_PERIOD_BEFORE / 2);
+        verify(mMockListener, times(1)).put(eq("foo"), anyString());
+        SystemClock.sleep(DEBOUNCE_PERIOD_BEFORE);
+        verify(mMockListener).put(eq("foo"), isNull(String.class));
+        verifyNoMoreInteractions(mMockListener);
+    }
+
+    public void testRemoveThenReAdd() {
+        putFromMainThread("foo", "bar");
+        verify(mMockListener).put(eq("foo"), eq("bar"));
+        removeFromMainThread("foo", DEBOUNCE_PERIOD_BEFORE);
+        putFromMainThread("foo", "bar");
+        SystemClock.sleep(DEBOUNCE_PERIOD_AFTER);
+        verifyNoMoreInteractions(mMockListener);
+    }
+
+    public void testRemoveUnknownKeyIgnored() {
+        mMapDebouncer = new MapDebouncer<>(0, mMockListener, HandlerScheduler.mainThread(), null);
+        putFromMainThread("foo", "bar");
+        putFromMainThread("foo", null);
+        removeFromMainThread("foo", 0);
+        removeFromMainThread("baz", 0);
+        SystemClock.sleep(DEBOUNCE_PERIOD_AFTER);
+        verify(mMockListener).put(eq("foo"), eq("bar"));
+        verify(mMockListener).put(eq("foo"), isNull(String.class));
+        verifyNoMoreInteractions(mMockListener);
+    }
+
+    private void removeFromMainThread(final String key, final int delayMillis) {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mMapDebouncer.remove(key, delayMillis);
+            }
+        });
+    }
+
     private void putFromMainThread(final String key, final String value) {
         runOnMainThread(new Runnable() {
             @Override
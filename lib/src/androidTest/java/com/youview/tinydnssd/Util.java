@@ -48,8 +48,21 @@ class Util {
     }
 
     private static void replaceRefs(Object object, Class clazz, Object from, Object to, Set<Object> seen) {
+        if (clazz.isArray()) {
+            if (!clazz.getComponentType().isPrimitive()) {
+                Object[] array = (Object[]) object;
+                for (int i = 0; i < array.length; i++) {
+                    Object value = array[i];
+                    if (value == from) {
+                        array[i] = to;
+                    } else if (value != null && seen.add(value)) {
+                        replaceRefs(value, value.getClass(), from, to, seen);
+                    }
+                }
+            }
+            return;
+        }
         do {
-            // TODO this doesn't yet iterate over array contents
             Field[] fields = clazz.getDeclaredFields();
             for (Field field : fields) {
                 if (field.getType().isPrimitive()) {
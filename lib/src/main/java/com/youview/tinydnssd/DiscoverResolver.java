@@ -22,18 +22,18 @@
 package com.youview.tinydnssd;
 
 import android.content.Context;
+import android.net.wifi.WifiManager;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
 import android.os.AsyncTask;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>Uses Android's {@link NsdManager} to perform mDNS Service Discovery. Additionally makes use of
@@ -50,27 +50,54 @@ import java.util.Map;
  * {@code debounceMillis} value in the constructor to configure a tolerance to this - removed
  * services are not notified to the listener until this time elapses without the service
  * reappearing.</p>
+ *
+ * <p>Debouncing, resolving, caching and the delivery of changes are done by a
+ * {@code DiscoveryEngine}, which has no Android dependencies; this class connects it to
+ * {@link NsdManager}, the Wi-Fi multicast lock, {@link SystemClock} and {@link Log}.</p>
  */
 public class DiscoverResolver {
 
     private static final String TAG = DiscoverResolver.class.getSimpleName();
-    private static final int RESOLVE_TIMEOUT = 1000;
+    private static final String SUBTYPE_SEPARATOR = "._sub.";
+
+    /** Priority of services that are queued to be re-resolved while already known. */
+    public static final int PRIORITY_LOW = DiscoveryEngine.PRIORITY_LOW;
+    /** Priority of services unless set otherwise with {@link #setPriority(String, int)}. */
+    public static final int PRIORITY_NORMAL = DiscoveryEngine.PRIORITY_NORMAL;
+    /** Suggested priority for services the user is interacting with. */
+    public static final int PRIORITY_HIGH = DiscoveryEngine.PRIORITY_HIGH;
 
     public interface Listener {
+        /**
+         * @param services the services now visible, keyed by service name. The map is an
+         *                 unmodifiable snapshot, the same object returned by
+         *                 {@link DiscoverResolver#getServices()}.
+         */
         void onServicesChanged(Map<String, MDNSDiscover.Result> services);
     }
 
-    private final MapDebouncer<String, Object> mDebouncer;
+    /**
+     * Selects the services of interest by their TXT attributes, see
+     * {@link DiscoverResolver#setFilter(Filter)}.
+     */
+    public interface Filter {
+        /**
+         * Called on a background thread as soon as a service's TXT record has been received.
+         * Should return quickly. A resolve that times out before the TXT record arrives is
+         * retried, and the service is not reported meanwhile.
+         * @param serviceName name of the service
+         * @param txt the service's TXT record, never {@code null}
+         * @return {@code true} to keep the service
+         */
+        boolean accept(String serviceName, MDNSDiscover.TXT txt);
+    }
 
     private final Context mContext;
-    private final String mServiceType;
-    private final HashMap<String, MDNSDiscover.Result> mServices = new HashMap<>();
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final TypeDiscoveryListener[] mDiscoveryListeners;
     private final Listener mListener;
-    private boolean mStarted;
-    private boolean mTransitioning;
-    private ResolveTask mResolveTask;
-    private final Map<String, NsdServiceInfo> mResolveQueue = new LinkedHashMap<>();
+    private volatile Filter mFilter;
+    private final DiscoveryEngine mEngine;
+    private WifiManager.MulticastLock mMulticastLock;
 
     /**
      * Equivalent to {@link #DiscoverResolver(Context, String, Listener, int)} with a
@@ -88,69 +115,185 @@ public class DiscoverResolver {
      *                       then reappear. See {@link DiscoverResolver} for details.
      */
     public DiscoverResolver(Context context, String serviceType, Listener listener, int debounceMillis) {
-        if     (context == null) throw new NullPointerException("context was null");
-        if (serviceType == null) throw new NullPointerException("serviceType was null");
-        if    (listener == null) throw new NullPointerException("listener was null");
+        this(context, new String[] { nonNull(serviceType) }, listener, debounceMillis);
+    }
+
+    /**
+     * Discovers several service types at once. Each type is browsed concurrently, but they share a
+     * single resolve queue, cache and debouncer. The listener receives all types in one map; use
+     * {@link #getServices(String)} to separate them.
+     * @param context the Context to run in
+     * @param serviceTypes mDNS service types such as {@code "_example._tcp"}. A subtype such as
+     *                     {@code "_printer._sub._http._tcp"} browses only the instances that
+     *                     advertise it; they are reported under their base type's names.
+     * @param listener to receive updates to visible services
+     * @param debounceMillis time to delay service signalling of services that may quickly disappear
+     *                       then reappear. See {@link DiscoverResolver} for details.
+     */
+    public DiscoverResolver(Context context, String[] serviceTypes, Listener listener, int debounceMillis) {
+        this(context, serviceTypes, listener, debounceMillis, HandlerScheduler.mainThread());
+    }
+
+    /**
+     * Like {@link #DiscoverResolver(Context, String[], Listener, int)}, but with control over the
+     * thread that receives updates. By default the listener is called on the main thread.
+     * @param scheduler delivers calls to the listener and runs debounce timers, e.g.
+     *                  {@link Scheduler#direct()} to call the listener without a thread hop
+     */
+    public DiscoverResolver(Context context, String[] serviceTypes, Listener listener, int debounceMillis, Scheduler scheduler) {
+        if      (context == null) throw new NullPointerException("context was null");
+        if (serviceTypes == null) throw new NullPointerException("serviceTypes was null");
+        if     (listener == null) throw new NullPointerException("listener was null");
+        if    (scheduler == null) throw new NullPointerException("scheduler was null");
+        if (serviceTypes.length == 0) throw new IllegalArgumentException("no serviceTypes");
 
         mContext = context;
-        mServiceType = serviceType;
         mListener = listener;
+        Set<String> distinctTypes = new LinkedHashSet<>();
+        for (String serviceType : serviceTypes) {
+            distinctTypes.add(DiscoveryEngine.normalizeServiceType(nonNull(serviceType)));
+        }
+        mDiscoveryListeners = new TypeDiscoveryListener[distinctTypes.size()];
+        int i = 0;
+        for (String serviceType : serviceTypes) {
+            if (distinctTypes.remove(DiscoveryEngine.normalizeServiceType(serviceType))) {
+                mDiscoveryListeners[i++] = new TypeDiscoveryListener(nsdServiceType(serviceType));
+            }
+        }
 
-        mDebouncer = new MapDebouncer<>(debounceMillis, new MapDebouncer.Listener<String, Object>() {
+        mEngine = new DiscoveryEngine(debounceMillis, scheduler, AsyncTask.THREAD_POOL_EXECUTOR) {
             @Override
-            public void put(String name, Object o) {
-                if (o != null) {
-                    Log.d(TAG, "add: " + name);
-                    synchronized (mResolveQueue) {
-                        mResolveQueue.put(name, null);
-                    }
-                    startResolveTaskIfNeeded();
-                } else {
-                    Log.d(TAG, "remove: " + name);
-                    synchronized (DiscoverResolver.this) {
-                        synchronized (mResolveQueue) {
-                            mResolveQueue.remove(name);
-                        }
-                        if (mStarted) {
-                            if (mServices.remove(name) != null) {
-                                dispatchServicesChanged();
-                            }
-                        }
-                    }
-                }
+            void onServicesChanged(Map<String, MDNSDiscover.Result> services) {
+                mListener.onServicesChanged(services);
+            }
+
+            @Override
+            boolean accept(String serviceName, MDNSDiscover.TXT txt) {
+                Filter filter = mFilter;
+                return filter == null || filter.accept(serviceName, txt);
+            }
+
+            @Override
+            boolean hasFilter() {
+                return mFilter != null;
             }
-        });
+
+            @Override
+            MDNSDiscover.Result resolve(String serviceName, int timeout, Cancellation cancellation) throws IOException {
+                return DiscoverResolver.this.resolve(serviceName, timeout);
+            }
+
+            @Override
+            long elapsedRealtime() {
+                return SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            void debug(String message) {
+                Log.d(TAG, message);
+            }
+
+            @Override
+            void warn(String message, Throwable e) {
+                Log.w(TAG, message, e);
+            }
+        };
     }
 
-    public synchronized void start() {
-        if (mStarted) {
-            throw new IllegalStateException();
-        }
-        if (!mTransitioning) {
-            discoverServices(mServiceType, NsdManager.PROTOCOL_DNS_SD, mDiscoveryListener);
-            mTransitioning = true;
-        }
-        mStarted = true;
+    /**
+     * Enables a persistent cache of resolved services. Services are saved to {@code file} when
+     * {@link #stop()} is called, and those that have not expired are reported immediately after the
+     * next {@link #start()}, then resolved again in the background. Cached services that no longer
+     * resolve are removed. File access happens on a background thread.
+     * @param file where to store the cache, typically in {@link Context#getCacheDir()}, or
+     *             {@code null} to disable caching
+     */
+    public void setCacheFile(File file) {
+        mEngine.setCacheFile(file);
+    }
+
+    /**
+     * Keeps only the services whose TXT record matches {@code filter}. Other services are dropped
+     * as soon as their TXT record is received: they are not reported to the listener, not
+     * retained and not resolved again until they are lost and found again. The filter applies to
+     * services resolved after this call.
+     * @param filter the filter, or {@code null} to keep all services
+     */
+    public void setFilter(Filter filter) {
+        mFilter = filter;
+    }
+
+    /**
+     * Enables listening on the mDNS port for announcements and responses to other hosts' queries
+     * while started. Observed records update services already resolved, and services whose
+     * records have all been seen are resolved without sending a query. Takes effect at the next
+     * {@link #start()}. The application must hold the
+     * {@code android.permission.CHANGE_WIFI_MULTICAST_STATE} permission, without which many
+     * devices filter out multicast packets.
+     * @param enabled {@code true} to listen passively, {@code false} by default
+     */
+    public void setPassiveListening(boolean enabled) {
+        mEngine.setPassiveListening(enabled);
     }
 
-    public synchronized void stop() {
-        if (!mStarted) {
-            throw new IllegalStateException();
+    public void start() {
+        synchronized (mEngine) {
+            mEngine.start();
+            if (mEngine.isPassiveListening()) {
+                acquireMulticastLock();
+            }
+            for (TypeDiscoveryListener listener : mDiscoveryListeners) {
+                if (!listener.mTransitioning) {
+                    discoverServices(listener.mServiceType, NsdManager.PROTOCOL_DNS_SD, listener);
+                    listener.mTransitioning = true;
+                }
+            }
         }
-        if (!mTransitioning) {
-            stopServiceDiscovery(mDiscoveryListener);
-            mTransitioning = true;
+    }
+
+    public void stop() {
+        synchronized (mEngine) {
+            mEngine.stop();
+            for (TypeDiscoveryListener listener : mDiscoveryListeners) {
+                if (!listener.mTransitioning) {
+                    stopServiceDiscovery(listener);
+                    listener.mTransitioning = true;
+                }
+            }
+            if (mMulticastLock != null) {
+                mMulticastLock.release();
+                mMulticastLock = null;
+            }
         }
-        synchronized (mResolveQueue) {
-            mResolveQueue.clear();
+    }
+
+    // call with mEngine locked
+    private void acquireMulticastLock() {
+        WifiManager wifiManager = (WifiManager) mContext.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager != null) {
+            try {
+                mMulticastLock = wifiManager.createMulticastLock(TAG);
+                mMulticastLock.setReferenceCounted(false);
+                mMulticastLock.acquire();
+            } catch (SecurityException e) {
+                Log.w(TAG, "no permission to receive multicast, passive listening may miss packets", e);
+                mMulticastLock = null;
+            }
         }
-        mDebouncer.clear();
-        mServices.clear();
-        mServicesChanged = false;
-        mStarted = false;
     }
 
-    private NsdManager.DiscoveryListener mDiscoveryListener = new NsdManager.DiscoveryListener() {
+    /**
+     * Receives NsdManager callbacks for one service type. NsdManager requires a separate listener
+     * for each concurrent discovery, and each one moves between started and stopped independently.
+     */
+    private class TypeDiscoveryListener implements NsdManager.DiscoveryListener {
+        private final String mServiceType;
+        private boolean mTransitioning;
+
+        TypeDiscoveryListener(String serviceType) {
+            mServiceType = serviceType;
+        }
+
         @Override
         public void onStartDiscoveryFailed(String serviceType, int errorCode) {
             Log.d(TAG, "onStartDiscoveryFailed() serviceType = [" + serviceType + "], errorCode = [" + errorCode + "]");
@@ -164,8 +307,8 @@ public class DiscoverResolver {
         @Override
         public void onDiscoveryStarted(String serviceType) {
             Log.d(TAG, "onDiscoveryStarted() serviceType = [" + serviceType + "]");
-            synchronized (DiscoverResolver.this) {
-                if (!mStarted) {
+            synchronized (mEngine) {
+                if (!mEngine.isStarted()) {
                     stopServiceDiscovery(this);
                 } else {
                     mTransitioning = false;
@@ -176,8 +319,8 @@ public class DiscoverResolver {
         @Override
         public void onDiscoveryStopped(String serviceType) {
             Log.d(TAG, "onDiscoveryStopped() serviceType = [" + serviceType + "]");
-            if (mStarted) {
-                discoverServices(serviceType, NsdManager.PROTOCOL_DNS_SD, this);
+            if (mEngine.isStarted()) {
+                discoverServices(mServiceType, NsdManager.PROTOCOL_DNS_SD, this);
             } else {
                 mTransitioning = false;
             }
@@ -186,106 +329,114 @@ public class DiscoverResolver {
         @Override
         public void onServiceFound(final NsdServiceInfo serviceInfo) {
             Log.d(TAG, "onServiceFound() serviceInfo = [" + serviceInfo + "]");
-            synchronized (DiscoverResolver.this) {
-                if (mStarted) {
-                    String name = serviceInfo.getServiceName() + "." + serviceInfo.getServiceType() + "local";
-                    mDebouncer.put(name, DUMMY);
-                }
-            }
+            mEngine.onServiceFound(serviceName(serviceInfo));
         }
 
         @Override
         public void onServiceLost(final NsdServiceInfo serviceInfo) {
             Log.d(TAG, "onServiceLost() serviceInfo = [" + serviceInfo + "]");
-            synchronized (DiscoverResolver.this) {
-                if (mStarted) {
-                    String name = serviceInfo.getServiceName() + "." + serviceInfo.getServiceType() + "local";
-                    mDebouncer.put(name, null);
-                }
-            }
+            mEngine.onServiceLost(serviceName(serviceInfo));
         }
-    };
+    }
+
+    private static String serviceName(NsdServiceInfo serviceInfo) {
+        return serviceInfo.getServiceName() + "." + DiscoveryEngine.stripSubtype(serviceInfo.getServiceType()) + "local";
+    }
 
     /**
-     * A non-null value that indicates membership in the MapDebouncer, null indicates non-membership
+     * Returns the services currently visible, as most recently notified to
+     * {@link Listener#onServicesChanged(Map)} or about to be. This does not wait for the resolver
+     * and copies the services at most once per change.
+     * @return an unmodifiable snapshot, which is not affected by later changes
      */
-    private Object DUMMY = new Object();
+    public Map<String, MDNSDiscover.Result> getServices() {
+        return mEngine.getServices();
+    }
 
-    private boolean mServicesChanged;
+    /**
+     * Returns the services of one type currently visible. Like {@link #getServices()} this never
+     * blocks, but it filters the snapshot on each call.
+     * @param serviceType one of the service types given to the constructor
+     * @return an unmodifiable map of the services of that type
+     */
+    public Map<String, MDNSDiscover.Result> getServices(String serviceType) {
+        return mEngine.getServices(serviceType);
+    }
 
-    private void dispatchServicesChanged() {
-        if (!mStarted) {
-            throw new IllegalStateException();
-        }
-        // Multiple calls to this method are possible before mServicesChangedRunnable executes.
-        // We don't post the runnable every time this method is called, instead we set a flag and
-        // post only if the flag was previously unset. The runnable clears the flag.
-        // In this way, the main thread can coalesce several updates into a single call to
-        // onServicesChanged().
-        if (!mServicesChanged) {
-            mServicesChanged = true;
-            mHandler.post(mServicesChangedRunnable);
-        }
+    /**
+     * Returns the services on one host, using an index rather than scanning all services.
+     * @param host the target of the services' SRV records, e.g. {@code "android-1234.local"},
+     *             compared case-insensitively
+     * @return an unmodifiable map of the matching services
+     */
+    public Map<String, MDNSDiscover.Result> getServicesByHost(String host) {
+        return mEngine.getServicesByHost(host);
     }
 
-    private Runnable mServicesChangedRunnable = new Runnable() {
-        @Override
-        public void run() {
-            synchronized (DiscoverResolver.this) {
-                if (mStarted && mServicesChanged) {
-                    @SuppressWarnings("unchecked")
-                    Map<String, MDNSDiscover.Result> services = (Map) mServices.clone();
-                    mListener.onServicesChanged(services);
-                }
-                mServicesChanged = false;
-            }
-        }
-    };
+    /**
+     * Returns the services at one IPv4 address, using an index rather than scanning all services.
+     * @param ipaddr address in dot-decimal notation, e.g. {@code "192.168.1.100"}
+     * @return an unmodifiable map of the matching services
+     */
+    public Map<String, MDNSDiscover.Result> getServicesByAddress(String ipaddr) {
+        return mEngine.getServicesByAddress(ipaddr);
+    }
 
-    private class ResolveTask extends AsyncTask<Void, Void, Void> {
-        @Override
-        protected Void doInBackground(Void... params) {
-            while (!isCancelled()) {
-                String serviceName;
-                synchronized (mResolveQueue) {
-                    Iterator<String> it = mResolveQueue.keySet().iterator();
-                    if (!it.hasNext()) {
-                        break;
-                    }
-                    serviceName = it.next();
-                    it.remove();
-                }
-                try {
-                    MDNSDiscover.Result result = resolve(serviceName, RESOLVE_TIMEOUT);
-                    synchronized (DiscoverResolver.this) {
-                        if (mStarted) {
-                            mServices.put(serviceName, result);
-                            dispatchServicesChanged();
-                        }
-                    }
-                } catch(IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            return null;
-        }
+    /**
+     * Returns the services with a TXT attribute, such as all devices with {@code model=X}, using an
+     * index rather than scanning all services.
+     * @param key the attribute's key, compared case-insensitively
+     * @param value the attribute's value, or {@code null} for an attribute present without a value
+     * @return an unmodifiable map of the matching services
+     */
+    public Map<String, MDNSDiscover.Result> getServicesWithTxt(String key, String value) {
+        return mEngine.getServicesWithTxt(key, value);
+    }
 
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            mResolveTask = null;
-            startResolveTaskIfNeeded();
+    /**
+     * @return the type to pass to {@link NsdManager}, which takes a subtype such as
+     *         {@code "_printer._sub._http._tcp"} in the form {@code "_http._tcp,_printer"}
+     */
+    private static String nsdServiceType(String serviceType) {
+        int sub = serviceType.indexOf(SUBTYPE_SEPARATOR);
+        if (sub == -1) {
+            return serviceType;
         }
+        return serviceType.substring(sub + SUBTYPE_SEPARATOR.length()) + "," + serviceType.substring(0, sub);
     }
 
-    private void startResolveTaskIfNeeded() {
-        if (mResolveTask == null) {
-            synchronized (mResolveQueue) {
-                if (!mResolveQueue.isEmpty()) {
-                    mResolveTask = new ResolveTask();
-                    mResolveTask.execute();
-                }
-            }
-        }
+    private static String nonNull(String serviceType) {
+        if (serviceType == null) throw new NullPointerException("serviceType was null");
+        return serviceType;
+    }
+
+    /**
+     * Limits how often the listener is called when services change rapidly. Changes are delivered
+     * once no further change has happened for {@code minIntervalMillis} (and no sooner than
+     * {@code minIntervalMillis} after the previous delivery), but never later than
+     * {@code maxLatencyMillis} after the first undelivered change. The default of 0 for both
+     * delivers changes as soon as the listener's thread is free.
+     * @param minIntervalMillis minimum time between calls to the listener
+     * @param maxLatencyMillis maximum time between a change and its delivery, at least
+     *                         {@code minIntervalMillis}
+     */
+    public void setDispatchInterval(int minIntervalMillis, int maxLatencyMillis) {
+        mEngine.setDispatchInterval(minIntervalMillis, maxLatencyMillis);
+    }
+
+    /**
+     * Sets the priority with which a service is resolved, relative to other services waiting to be
+     * resolved. Services with a higher priority are resolved first, for example those the user is
+     * currently looking at. A service that has been waiting a long time is eventually resolved
+     * regardless of priority. The priority applies immediately if the service is already waiting,
+     * and to any future resolves of it.
+     * @param serviceName name of the service, as used for keys in
+     *                    {@link Listener#onServicesChanged(Map)}
+     * @param priority the priority, e.g. {@link #PRIORITY_HIGH}, or {@link #PRIORITY_NORMAL} to
+     *                 restore the default behaviour
+     */
+    public void setPriority(String serviceName, int priority) {
+        mEngine.setPriority(serviceName, priority);
     }
 
     // default implementation is to delegate to NsdManager
@@ -303,6 +454,6 @@ public class DiscoverResolver {
     // default implementation is to delegate to MDNSDiscover
     // tests can stub this to mock it
     protected MDNSDiscover.Result resolve(String serviceName, int resolveTimeout) throws IOException {
-        return MDNSDiscover.resolve(serviceName, resolveTimeout);
+        return MDNSDiscover.resolve(serviceName, resolveTimeout, mEngine.getResolvingCancellation());
     }
 }
@@ -0,0 +1,66 @@
+/* The MIT License (MIT)
+ * Copyright (c) 2016 YouView Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.youview.tinydnssd;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * {@link Scheduler} that runs tasks on the {@link Looper} of a {@link Handler}.
+ */
+public class HandlerScheduler extends Scheduler {
+
+    private final Handler mHandler;
+
+    public HandlerScheduler(Handler handler) {
+        if (handler == null) throw new NullPointerException("handler was null");
+        mHandler = handler;
+    }
+
+    /**
+     * @return a scheduler for the main thread
+     */
+    public static HandlerScheduler mainThread() {
+        return new HandlerScheduler(new Handler(Looper.getMainLooper()));
+    }
+
+    @Override
+    public void post(Runnable r) {
+        mHandler.post(r);
+    }
+
+    @Override
+    public void postDelayed(Runnable r, long delayMillis) {
+        mHandler.postDelayed(r, delayMillis);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable r) {
+        mHandler.removeCallbacks(r);
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+}